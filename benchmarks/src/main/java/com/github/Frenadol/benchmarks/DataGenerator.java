@@ -0,0 +1,137 @@
+package com.github.Frenadol.benchmarks;
+
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.XmlReader;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Builds synthetic users, contacts and messages for the benchmarks.
+ * Data is deterministic for a given size, so runs can be compared with each other.
+ */
+public final class DataGenerator {
+
+    /**
+     * Stands in for a SHA3-256 password hash; the benchmarks never check it.
+     */
+    static final String PASSWORD_HASH = "5d1a6a9a0d6b5e1c4c5a3bd2e4b1e0f5b8d5c2a1e7f3a9b4c6d8e0f2a4b6c8d0";
+
+    private static final int DISTINCT_AVATARS = 16;
+
+    private DataGenerator() {}
+
+    /**
+     * Creates a temporary directory for the files of one benchmark.
+     */
+    static Path createWorkspace() throws IOException {
+        return Files.createTempDirectory("chattot-bench");
+    }
+
+    /**
+     * Deletes a workspace created by {@link #createWorkspace()}.
+     */
+    static void deleteWorkspace(Path workspace) throws IOException {
+        try (Stream<Path> paths = Files.walk(workspace)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    static String userName(int index) {
+        return "user" + index;
+    }
+
+    /**
+     * Creates users whose contacts are the next users in the list.
+     * Avatars are only referenced by hash, so saving them never touches the avatar store.
+     */
+    static List<User> users(int count, int contactsPerUser) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User(userName(i), PASSWORD_HASH, null, null);
+            user.setProfileImageHash(avatarHash(i));
+            users.add(user);
+        }
+        for (int i = 0; i < count; i++) {
+            List<User> contacts = new ArrayList<>(contactsPerUser);
+            for (int j = 1; j <= Math.min(contactsPerUser, count - 1); j++) {
+                User contact = users.get((i + j) % count);
+                User copy = new User(contact.getName(), contact.getPassword(), null, null);
+                copy.setProfileImageHash(contact.getProfileImageHash());
+                contacts.add(copy);
+            }
+            users.get(i).setContacts(contacts);
+        }
+        return users;
+    }
+
+    /**
+     * Creates messages between users and their contacts, in chronological order.
+     */
+    static List<Message> messages(List<User> users, int count) {
+        Random random = new Random(count);
+        LocalDateTime timestamp = LocalDateTime.of(2024, 1, 1, 0, 0);
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User sender = users.get(random.nextInt(users.size()));
+            List<User> contacts = sender.getContacts();
+            User receiver = contacts.isEmpty() ? sender : contacts.get(random.nextInt(contacts.size()));
+            timestamp = timestamp.plusSeconds(1 + random.nextInt(60));
+            messages.add(new Message(sender, receiver, "Mensaje de prueba numero " + i, timestamp));
+        }
+        return messages;
+    }
+
+    static void writeUsers(List<User> users, File file) {
+        XmlReader.saveUsersToXML(users, file.getPath());
+    }
+
+    /**
+     * Writes messages in the ChatData.xml format.
+     */
+    static void writeMessagesXml(List<Message> messages, File file) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(output, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("messages");
+            for (Message message : messages) {
+                writer.writeStartElement("message");
+                writeElement(writer, "sender", message.getSender().getName());
+                writeElement(writer, "receiver", message.getReceiver().getName());
+                writeElement(writer, "content", message.getContent());
+                writeElement(writer, "timestamp", message.getTimestamp().toString());
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String name, String text) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+    private static String avatarHash(int index) {
+        return String.format("%064x", index % DISTINCT_AVATARS + 1);
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.Frenadol.benchmarks;
+
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.ConversationIndex;
+import com.github.Frenadol.utils.MessageLog;
+import com.github.Frenadol.utils.UserDirectory;
+import com.github.Frenadol.utils.XmlReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the message history: the legacy ChatData.xml against the message log,
+ * whole history against a single conversation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFileBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int messages;
+
+    @Param({"100"})
+    public int users;
+
+    @Param({"5"})
+    public int contacts;
+
+    private Path workspace;
+    private File chatFile;
+    private UserDirectory directory;
+    private MessageLog log;
+    private String userA;
+    private String userB;
+
+    @Setup
+    public void setUp() throws IOException {
+        workspace = DataGenerator.createWorkspace();
+        File usersFile = workspace.resolve("UsersData.xml").toFile();
+        chatFile = workspace.resolve("ChatData.xml").toFile();
+
+        List<User> data = DataGenerator.users(users, contacts);
+        List<Message> history = DataGenerator.messages(data, messages);
+        DataGenerator.writeUsers(data, usersFile);
+        DataGenerator.writeMessagesXml(history, chatFile);
+        directory = new UserDirectory(usersFile.getPath());
+
+        log = new MessageLog(workspace.resolve("ChatLog").toString(), 8L * 1024 * 1024);
+        log.setConversationIndex(new ConversationIndex(workspace.resolve("conversations.idx").toFile()));
+        log.appendAll(history);
+        userA = history.get(0).getSender().getName();
+        userB = history.get(0).getReceiver().getName();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        DataGenerator.deleteWorkspace(workspace);
+    }
+
+    @Benchmark
+    public List<Message> getMessagesFromXML() {
+        return XmlReader.getMessagesFromXML(chatFile.getPath(), directory);
+    }
+
+    @Benchmark
+    public List<Message> messageLogReadAll() throws IOException {
+        return log.readAll();
+    }
+
+    @Benchmark
+    public List<Message> messageLogReadConversation() throws IOException {
+        return log.readConversation(userA, userB);
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.Frenadol.benchmarks;
+
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.ConversationIndex;
+import com.github.Frenadol.utils.GroupCommitWriter;
+import com.github.Frenadol.utils.MessageLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of sending one message with a given amount of history already stored:
+ * the DOM rewrite ChatController used to do, a direct log append, and a group commit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendPathBenchmark {
+
+    @Param({"1000", "10000"})
+    public int history;
+
+    private Path workspace;
+    private List<Message> existing;
+    private File chatFile;
+    private MessageLog log;
+    private GroupCommitWriter writer;
+    private Message message;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        workspace = DataGenerator.createWorkspace();
+        List<User> users = DataGenerator.users(100, 5);
+        existing = DataGenerator.messages(users, history);
+
+        chatFile = workspace.resolve("ChatData.xml").toFile();
+        DataGenerator.writeMessagesXml(existing, chatFile);
+
+        log = new MessageLog(workspace.resolve("ChatLog").toString(), 8L * 1024 * 1024);
+        log.setConversationIndex(new ConversationIndex(workspace.resolve("conversations.idx").toFile()));
+        log.appendAll(existing);
+        writer = new GroupCommitWriter(log, null, 0, 256, false);
+
+        message = new Message(users.get(0), users.get(1), "Hola", LocalDateTime.now());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        writer.close();
+        log.close();
+        DataGenerator.deleteWorkspace(workspace);
+    }
+
+    @Benchmark
+    public void legacyXmlRewrite() throws Exception {
+        addMessageToXML(message, chatFile);
+    }
+
+    @Benchmark
+    public long messageLogAppend() throws IOException {
+        return log.append(message);
+    }
+
+    @Benchmark
+    public long groupCommit() throws InterruptedException, ExecutionException {
+        return writer.submit(message).get();
+    }
+
+    /**
+     * The send path as it was in ChatController before the message log:
+     * parse the whole file, add one element, write the whole file back.
+     */
+    private static void addMessageToXML(Message newMessage, File xmlFile) throws Exception {
+        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
+        Document doc = docBuilder.parse(xmlFile);
+        Element rootElement = doc.getDocumentElement();
+
+        Element messageElement = doc.createElement("message");
+        rootElement.appendChild(messageElement);
+        for (String[] field : new String[][]{
+                {"sender", newMessage.getSender().getName()},
+                {"receiver", newMessage.getReceiver().getName()},
+                {"content", newMessage.getContent()},
+                {"timestamp", newMessage.getTimestamp().toString()}}) {
+            Element element = doc.createElement(field[0]);
+            element.appendChild(doc.createTextNode(field[1]));
+            messageElement.appendChild(element);
+        }
+
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.transform(new DOMSource(doc), new StreamResult(xmlFile));
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.Frenadol.benchmarks;
+
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.StreamingXmlReader;
+import com.github.Frenadol.utils.XmlReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading, saving and searching UsersData.xml for a growing number of users and contacts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserFileBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int users;
+
+    @Param({"5", "50"})
+    public int contacts;
+
+    private Path workspace;
+    private File usersFile;
+    private File savedFile;
+    private List<User> data;
+    private User lastUser;
+    private String missingContact;
+
+    @Setup
+    public void setUp() throws IOException {
+        workspace = DataGenerator.createWorkspace();
+        usersFile = workspace.resolve("UsersData.xml").toFile();
+        savedFile = workspace.resolve("Saved.xml").toFile();
+        data = DataGenerator.users(users, contacts);
+        DataGenerator.writeUsers(data, usersFile);
+        lastUser = data.get(data.size() - 1);
+        missingContact = "nobody";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        DataGenerator.deleteWorkspace(workspace);
+    }
+
+    @Benchmark
+    public List<User> getUsersFromXML() {
+        return XmlReader.getUsersFromXML(usersFile.getPath());
+    }
+
+    @Benchmark
+    public void saveUsersToXML() {
+        XmlReader.saveUsersToXML(data, savedFile.getPath());
+    }
+
+    /**
+     * Worst case: the current user is the last one and the contact is not there.
+     */
+    @Benchmark
+    public boolean isUserExists() throws Exception {
+        return XmlReader.isUserExists(missingContact, usersFile.getPath(), lastUser);
+    }
+
+    /**
+     * The login lookup: the user is the last one of the file.
+     */
+    @Benchmark
+    public User findUser() throws IOException {
+        return StreamingXmlReader.findUser(usersFile.getPath(), lastUser.getName(), false);
+    }
+}
@@ -1,8 +1,14 @@
 package com.github.Frenadol;
 
+import com.github.Frenadol.utils.ChatClient;
+import com.github.Frenadol.utils.ChatServer;
+import com.github.Frenadol.utils.FlightEvents;
+import com.github.Frenadol.utils.GroupCommitWriter;
+import com.github.Frenadol.utils.LogTailer;
+import com.github.Frenadol.utils.MetricsServer;
+import com.github.Frenadol.view.ViewRegistry;
 import javafx.animation.FadeTransition;
 import javafx.application.Application;
-import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
@@ -16,22 +22,39 @@ public class App extends Application {
 
     @Override
     public void start(Stage stage) throws IOException {
-        scene = new Scene(loadFXML("Splash"), 640, 480);
+        FlightEvents.startRecordingIfRequested();
+        MetricsServer.startIfConfigured();
+        scene = new Scene(ViewRegistry.getInstance().show("Splash"), 640, 480);
         stage.setScene(scene);
         stage.show();
     }
 
+    /**
+     * Stops following the message log, disconnects from the chat server, stops it if this instance hosts it, and commits
+     * the messages still waiting in the write-behind queue and stops serving metrics before the application exits.
+     */
+    @Override
+    public void stop() throws Exception {
+        LogTailer.shutdown();
+        ChatClient.shutdown();
+        ChatServer.shutdown();
+        GroupCommitWriter.shutdown();
+        MetricsServer.shutdown();
+    }
+
+    /**
+     * Shows a view in the main window. Views are loaded once and kept by the {@link ViewRegistry},
+     * so navigating back to one only refreshes it.
+     *
+     * @param fxml the name of the FXML file, without extension.
+     * @throws IOException if the view cannot be loaded.
+     */
     public static void setRoot(String fxml) throws IOException {
-        Parent root = loadFXML(fxml);
+        Parent root = ViewRegistry.getInstance().show(fxml);
         scene.setRoot(root);
         applyFadeTransition(root);
     }
 
-    private static Parent loadFXML(String fxml) throws IOException {
-        FXMLLoader fxmlLoader = new FXMLLoader(App.class.getResource(fxml + ".fxml"));
-        return fxmlLoader.load();
-    }
-
     private static void applyFadeTransition(Parent root) {
         FadeTransition fadeTransition = new FadeTransition(Duration.seconds(1), root);
         fadeTransition.setFromValue(0);
@@ -0,0 +1,72 @@
+package com.github.Frenadol.model;
+
+import com.github.Frenadol.utils.MessageLog;
+import com.github.Frenadol.utils.UserTable;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * A {@link Message} read back from the message log, held in as little memory as possible.
+ * Sender and receiver are ids in a {@link UserTable}, the timestamp is kept as epoch microseconds
+ * and the content stays as UTF-8 bytes until it is asked for. The getters of Message build the usual
+ * objects on demand, so code written against Message keeps working unchanged.
+ */
+public final class CompactMessage extends Message {
+
+    private final UserTable users;
+    private final int senderId;
+    private final int receiverId;
+    private final long epochMicros;
+    private final byte[] content;
+
+    /**
+     * Creates a message from its stored form.
+     *
+     * @param users the table the ids belong to.
+     * @param senderId the id of the sender.
+     * @param receiverId the id of the receiver.
+     * @param epochMicros the timestamp, in microseconds since the epoch in UTC.
+     * @param content the content, encoded as UTF-8.
+     */
+    public CompactMessage(UserTable users, int senderId, int receiverId, long epochMicros, byte[] content) {
+        super(null, null, null, null);
+        this.users = users;
+        this.senderId = senderId;
+        this.receiverId = receiverId;
+        this.epochMicros = epochMicros;
+        this.content = content;
+    }
+
+    @Override
+    public User getSender() {
+        return users.get(senderId);
+    }
+
+    @Override
+    public User getReceiver() {
+        return users.get(receiverId);
+    }
+
+    @Override
+    public String getContent() {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public LocalDateTime getTimestamp() {
+        return MessageLog.fromEpochMicros(epochMicros);
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public int getReceiverId() {
+        return receiverId;
+    }
+
+    public long getEpochMicros() {
+        return epochMicros;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.Frenadol.model;
+
+import com.github.Frenadol.utils.MessageLog;
+
+import java.time.LocalDateTime;
+
+/**
+ * The state of a conversation as seen by one of its participants: the newest message,
+ * how many messages were exchanged and how many of the received ones are still unread.
+ */
+public final class ConversationSummary {
+
+    private final String contact;
+    private final String lastSender;
+    private final String preview;
+    private final long lastEpochMicros;
+    private final int messageCount;
+    private final int unreadCount;
+
+    /**
+     * Creates a summary.
+     *
+     * @param contact the name of the other participant.
+     * @param lastSender the name of the sender of the newest message.
+     * @param preview the beginning of the newest message.
+     * @param lastEpochMicros the timestamp of the newest message, in microseconds since the epoch in UTC.
+     * @param messageCount the number of messages in the conversation.
+     * @param unreadCount the number of received messages not read yet.
+     */
+    public ConversationSummary(String contact, String lastSender, String preview, long lastEpochMicros,
+                               int messageCount, int unreadCount) {
+        this.contact = contact;
+        this.lastSender = lastSender;
+        this.preview = preview;
+        this.lastEpochMicros = lastEpochMicros;
+        this.messageCount = messageCount;
+        this.unreadCount = unreadCount;
+    }
+
+    public String getContact() {
+        return contact;
+    }
+
+    public String getLastSender() {
+        return lastSender;
+    }
+
+    public String getPreview() {
+        return preview;
+    }
+
+    public long getLastEpochMicros() {
+        return lastEpochMicros;
+    }
+
+    public LocalDateTime getLastTimestamp() {
+        return MessageLog.fromEpochMicros(lastEpochMicros);
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ConversationSummary{" +
+                "contact='" + contact + '\'' +
+                ", lastSender='" + lastSender + '\'' +
+                ", preview='" + preview + '\'' +
+                ", lastTimestamp=" + getLastTimestamp() +
+                ", messageCount=" + messageCount +
+                ", unreadCount=" + unreadCount +
+                '}';
+    }
+}
@@ -34,10 +34,10 @@ public class Message {
     @Override
     public String toString() {
         return "Message{" +
-                "sender=" + sender +
-                ", receiver=" + receiver +
-                ", content='" + content + '\'' +
-                ", timestamp=" + timestamp +
+                "sender=" + getSender() +
+                ", receiver=" + getReceiver() +
+                ", content='" + getContent() + '\'' +
+                ", timestamp=" + getTimestamp() +
                 '}';
     }
 }
\ No newline at end of file
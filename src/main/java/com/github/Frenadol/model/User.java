@@ -1,13 +1,21 @@
 package com.github.Frenadol.model;
 
+import com.github.Frenadol.utils.AvatarStore;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class User {
+    private static final Logger logger = Logger.getLogger(User.class.getName());
+
     private String name;
     private String password;
     private byte[] profileImage;
+    private String profileImageHash;
     private List<User> contacts;
 
 
@@ -32,10 +40,27 @@ public class User {
         return password;
     }
 
+    /**
+     * Returns the profile image, loading it from the avatar store the first time
+     * if only its hash was read.
+     *
+     * @return the image bytes, or null if the user has no image.
+     */
     public byte[] getProfileImage() {
+        if (profileImage == null && profileImageHash != null) {
+            try {
+                profileImage = AvatarStore.getInstance().load(profileImageHash);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot load avatar " + profileImageHash + " of " + name, e);
+            }
+        }
         return profileImage;
     }
 
+    public String getProfileImageHash() {
+        return profileImageHash;
+    }
+
     public List<User> getContacts() {
         if (contacts == null) {
             contacts = new ArrayList<>();
@@ -53,6 +78,11 @@ public class User {
 
     public void setProfileImage(byte[] profileImage) {
         this.profileImage = profileImage;
+        this.profileImageHash = null;
+    }
+
+    public void setProfileImageHash(String profileImageHash) {
+        this.profileImageHash = profileImageHash;
     }
 
     public void setContacts(List<User> contacts) {
@@ -0,0 +1,140 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+import javafx.application.Platform;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs persistence work on a small, bounded pool of I/O threads so the JavaFX Application Thread
+ * never waits for a file. Every operation returns a CompletableFuture; controllers continue on the
+ * FX thread by passing {@link #FX} to the async variants, e.g. {@code whenCompleteAsync(handler, AsyncStore.FX)}.
+ */
+public class AsyncStore {
+
+    private static final int IO_THREADS = 2;
+    private static final int QUEUE_CAPACITY = 256;
+
+    /**
+     * Executor that runs its tasks on the JavaFX Application Thread.
+     */
+    public static final Executor FX = Platform::runLater;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                Thread thread = new Thread(runnable, "chattot-io-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private AsyncStore() {}
+
+    /**
+     * A unit of I/O work that may fail with a checked exception.
+     *
+     * @param <T> the type of the result.
+     */
+    public interface IoTask<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * A unit of I/O work without a result.
+     */
+    public interface IoAction {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs a task on the I/O executor.
+     * If the queue is full the returned future fails right away instead of blocking the caller.
+     *
+     * @param task the work to run.
+     * @param <T> the type of the result.
+     * @return a future completed with the result of the task, or with its exception.
+     */
+    public static <T> CompletableFuture<T> supply(IoTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs an action on the I/O executor.
+     *
+     * @param action the work to run.
+     * @return a future completed when the action is done, or with its exception.
+     */
+    public static CompletableFuture<Void> run(IoAction action) {
+        return supply(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Queues a message for the next group commit to the shared message log.
+     *
+     * @param message the message to store.
+     * @return a future with the position of the message, completed once it is written.
+     */
+    public static CompletableFuture<Long> appendMessage(Message message) {
+        return supply(GroupCommitWriter::getInstance).thenCompose(writer -> writer.submit(message));
+    }
+
+    /**
+     * Looks up a user in the shared user directory.
+     *
+     * @param name the name of the user.
+     * @return a future with the user, or null if there is no such user.
+     */
+    public static CompletableFuture<User> findUser(String name) {
+        return supply(() -> UserDirectory.getInstance().find(name));
+    }
+
+    /**
+     * Adds a contact to a user in the shared user directory.
+     *
+     * @param userName the name of the user that gets the new contact.
+     * @param contact the contact to add.
+     * @return a future with the updated contact list, or null if the user does not exist.
+     */
+    public static CompletableFuture<List<User>> addContact(String userName, User contact) {
+        return supply(() -> UserDirectory.getInstance().addContact(userName, contact));
+    }
+
+    /**
+     * Returns the exception that actually made an operation fail,
+     * without the CompletionException wrapper added by CompletableFuture.
+     *
+     * @param error the exception passed to a completion handler.
+     * @return the underlying exception.
+     */
+    public static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
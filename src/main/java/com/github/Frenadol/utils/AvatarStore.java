@@ -0,0 +1,121 @@
+package com.github.Frenadol.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed store for profile images.
+ * Each distinct image is kept once, in a file named after the hash of its bytes,
+ * so users and contacts only need to carry that hash.
+ */
+public class AvatarStore {
+
+    private static final String DEFAULT_DIRECTORY = "Avatars";
+
+    private static AvatarStore instance;
+
+    private final File directory;
+
+    /**
+     * Opens (or creates) an avatar store in the given directory.
+     *
+     * @param directory the directory holding one file per image.
+     * @throws IOException if the directory cannot be created.
+     */
+    public AvatarStore(String directory) throws IOException {
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create avatar directory " + directory);
+        }
+    }
+
+    /**
+     * Returns the shared avatar store of the working directory.
+     *
+     * @return the shared AvatarStore instance.
+     */
+    public static synchronized AvatarStore getInstance() {
+        if (instance == null) {
+            try {
+                instance = new AvatarStore(DEFAULT_DIRECTORY);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Stores an image unless an identical one is already present.
+     *
+     * @param image the image bytes.
+     * @return the hash that identifies the image.
+     * @throws IOException if the image cannot be written.
+     */
+    public String store(byte[] image) throws IOException {
+        String hash = hashOf(image);
+        Path target = fileOf(hash).toPath();
+        if (Files.exists(target)) {
+            return hash;
+        }
+
+        Path temp = Files.createTempFile(directory.toPath(), hash, ".tmp");
+        try {
+            Files.write(temp, image);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Another writer stored the same image first.
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return hash;
+    }
+
+    /**
+     * Loads the image with the given hash.
+     *
+     * @param hash the hash returned by {@link #store(byte[])}.
+     * @return the image bytes.
+     * @throws IOException if there is no such image or it cannot be read.
+     */
+    public byte[] load(String hash) throws IOException {
+        return Files.readAllBytes(fileOf(hash).toPath());
+    }
+
+    /**
+     * Checks whether an image with the given hash is stored.
+     *
+     * @param hash the image hash.
+     * @return true if the image is present.
+     */
+    public boolean contains(String hash) {
+        return fileOf(hash).exists();
+    }
+
+    /**
+     * Computes the hash under which an image is stored.
+     *
+     * @param image the image bytes.
+     * @return the hexadecimal hash of the image.
+     */
+    public static String hashOf(byte[] image) {
+        try {
+            return Security.hashBytes(image);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File fileOf(String hash) {
+        if (!hash.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Invalid avatar hash " + hash);
+        }
+        return new File(directory, hash);
+    }
+}
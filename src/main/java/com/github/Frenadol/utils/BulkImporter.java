@@ -0,0 +1,423 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Offline bulk loader of old message histories into the {@link MessageLog}.
+ * <p>
+ * A ChatData.txt mirror ({@code [timestamp] sender a receiver: content} per line) is split into chunks
+ * that end where a line starting with {@code [} begins, and the chunks are parsed in parallel on a
+ * {@link ForkJoinPool}. Senders and receivers are resolved through a map from name to user built once
+ * from the {@link UserDirectory}, so every message of the same user shares one instance. Chunks are
+ * handled a window at a time: the messages of a window are sorted by timestamp and written with a single
+ * {@link MessageLog#appendAll(List)}, which fills segments and updates the indexes in the same pass.
+ * Lines that do not start a message are taken as continuation lines of the previous message's content.
+ * <p>
+ * Legacy ChatData.xml files cannot be split, so they are streamed and written in batches instead.
+ * <p>
+ * Run it with the application stopped, from the directory holding ChatLog:
+ * {@code java -cp CHATTOT.jar com.github.Frenadol.utils.BulkImporter ChatData.txt [ChatData.xml ...]}.
+ * The log is opened without the import of ChatData.xml that the application does on an empty log,
+ * since ChatData.txt mirrors the same messages; pass ChatData.xml explicitly to import it instead.
+ * It does not check for messages already in the log, so each history should only be imported once.
+ */
+public class BulkImporter {
+
+    private static final Logger logger = Logger.getLogger(BulkImporter.class.getName());
+
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final int XML_BATCH = 10_000;
+    private static final int MAX_HEADER_BYTES = 4096;
+
+    private final MessageLog log;
+    private final ForkJoinPool pool;
+    private final Map<String, User> usersByName = new HashMap<>();
+    private final Map<String, User> unknownUsers = new ConcurrentHashMap<>();
+
+    /**
+     * The outcome of an import.
+     */
+    public static class Result {
+        private final long imported;
+        private final long skipped;
+        private final long elapsedNanos;
+
+        Result(long imported, long skipped, long elapsedNanos) {
+            this.imported = imported;
+            this.skipped = skipped;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : imported * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages imported, %d lines skipped in %d ms (%.0f records/s)",
+                    imported, skipped, getElapsedMillis(), getRecordsPerSecond());
+        }
+    }
+
+    /**
+     * Creates an importer that writes to a log and parses on the given pool.
+     *
+     * @param log the log to import into.
+     * @param users the known users, used to resolve names in the imported messages.
+     * @param pool the pool that parses chunks.
+     */
+    public BulkImporter(MessageLog log, List<User> users, ForkJoinPool pool) {
+        this.log = log;
+        this.pool = pool;
+        for (User user : users) {
+            usersByName.put(user.getName(), new User(user.getName(), null, null, null));
+        }
+    }
+
+    /**
+     * Imports a ChatData.txt mirror.
+     *
+     * @param file the text file.
+     * @return how many messages were imported and how fast.
+     * @throws IOException if the file cannot be read or the log cannot be written.
+     */
+    public Result importText(File file) throws IOException {
+        long start = System.nanoTime();
+        long imported = 0;
+        AtomicLong skipped = new AtomicLong();
+        int window = Math.max(1, pool.getParallelism()) * 4;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            for (int first = 0; first < bounds.length - 1; first += window) {
+                int last = Math.min(bounds.length - 1, first + window);
+                List<Message> messages;
+                try {
+                    messages = pool.invoke(new ParseTask(channel, bounds, first, last, skipped));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                messages.sort(Comparator.comparing(Message::getTimestamp));
+                if (!messages.isEmpty()) {
+                    log.appendAll(messages);
+                }
+                imported += messages.size();
+                logger.fine("Imported " + imported + " messages from " + file);
+            }
+        }
+        log.sync();
+        return new Result(imported, skipped.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * Imports a legacy ChatData.xml file, streaming it and writing in batches.
+     *
+     * @param file the XML file.
+     * @return how many messages were imported and how fast.
+     * @throws IOException if the file cannot be parsed or the log cannot be written.
+     */
+    public Result importXml(File file) throws IOException {
+        long start = System.nanoTime();
+        long[] imported = new long[1];
+        List<Message> batch = new ArrayList<>(XML_BATCH);
+        try {
+            StreamingXmlReader.forEachMessage(file.getPath(), this::resolve, message -> {
+                batch.add(message);
+                if (batch.size() == XML_BATCH) {
+                    flush(batch);
+                    imported[0] += XML_BATCH;
+                }
+                return true;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        imported[0] += batch.size();
+        flush(batch);
+        log.sync();
+        return new Result(imported[0], 0, System.nanoTime() - start);
+    }
+
+    private void flush(List<Message> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            log.appendAll(batch);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        batch.clear();
+    }
+
+    private User resolve(String name) {
+        User user = usersByName.get(name);
+        if (user == null) {
+            user = unknownUsers.computeIfAbsent(name, key -> new User(key, null, null, null));
+        }
+        return user;
+    }
+
+    /**
+     * Finds where the chunks start: roughly every {@link #CHUNK_BYTES}, moved forward to the next line
+     * that is a message header, so no message is split between two chunks. A continuation line of a
+     * multi-line message that happens to start with {@code [} is not taken as a boundary.
+     */
+    private static long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long next = CHUNK_BYTES;
+        while (next < size) {
+            long boundary = nextHeader(channel, next, size);
+            if (boundary < 0) {
+                break;
+            }
+            bounds.add(boundary);
+            next = boundary + CHUNK_BYTES;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the position of the first line starting at or after the given position that parses as a
+     * message header, or -1 if there is none.
+     */
+    private static long nextHeader(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position - 1);
+            if (read <= 1) {
+                break;
+            }
+            buffer.flip();
+            byte previous = buffer.get();
+            for (int i = 1; i < read; i++) {
+                byte current = buffer.get();
+                if (previous == '\n' && current == '[' && Header.parse(readLineStart(channel, position - 1 + i)) != null) {
+                    return position - 1 + i;
+                }
+                previous = current;
+            }
+            position += read - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the line starting at a position, up to {@link #MAX_HEADER_BYTES}, which is enough to hold a header.
+     */
+    private static String readLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        int length = 0;
+        while (length < buffer.position() && buffer.get(length) != '\n') {
+            length++;
+        }
+        if (length > 0 && buffer.get(length - 1) == '\r') {
+            length--;
+        }
+        return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The first line of a message: {@code [timestamp] sender a receiver: content}.
+     */
+    private static final class Header {
+        final LocalDateTime timestamp;
+        final String sender;
+        final String receiver;
+        final String content;
+
+        private Header(LocalDateTime timestamp, String sender, String receiver, String content) {
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.content = content;
+        }
+
+        /**
+         * Parses a line as a message header.
+         *
+         * @return the header, or null if the line continues the previous message.
+         */
+        static Header parse(String line) {
+            int closing = line.startsWith("[") ? line.indexOf("] ") : -1;
+            int to = closing < 0 ? -1 : line.indexOf(" a ", closing + 2);
+            int colon = to < 0 ? -1 : line.indexOf(": ", to + 3);
+            if (colon < 0) {
+                return null;
+            }
+            try {
+                return new Header(LocalDateTime.parse(line.substring(1, closing)), line.substring(closing + 2, to),
+                        line.substring(to + 3, colon), line.substring(colon + 2));
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Parses a range of chunks, splitting it in halves until single chunks are left.
+     */
+    @SuppressWarnings("serial")
+    private class ParseTask extends RecursiveTask<List<Message>> {
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int first;
+        private final int last;
+        private final AtomicLong skipped;
+
+        ParseTask(FileChannel channel, long[] bounds, int first, int last, AtomicLong skipped) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.first = first;
+            this.last = last;
+            this.skipped = skipped;
+        }
+
+        @Override
+        protected List<Message> compute() {
+            if (last - first <= 1) {
+                List<Message> messages = new ArrayList<>();
+                if (first < last) {
+                    parseChunk(bounds[first], bounds[last], messages);
+                }
+                return messages;
+            }
+            int middle = (first + last) >>> 1;
+            ParseTask right = new ParseTask(channel, bounds, middle, last, skipped);
+            right.fork();
+            List<Message> messages = new ParseTask(channel, bounds, first, middle, skipped).compute();
+            messages.addAll(right.join());
+            return messages;
+        }
+
+        private void parseChunk(long start, long end, List<Message> messages) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+
+            String sender = null;
+            String receiver = null;
+            LocalDateTime timestamp = null;
+            StringBuilder content = null;
+            int lineStart = 0;
+            while (lineStart < text.length()) {
+                int lineEnd = text.indexOf('\n', lineStart);
+                if (lineEnd < 0) {
+                    lineEnd = text.length();
+                }
+                String line = text.substring(lineStart, lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd);
+                lineStart = lineEnd + 1;
+
+                Header header = Header.parse(line);
+                if (header == null) {
+                    if (content != null) {
+                        content.append('\n').append(line);
+                    } else if (!line.isEmpty()) {
+                        skipped.incrementAndGet();
+                    }
+                    continue;
+                }
+                if (content != null) {
+                    messages.add(new Message(resolve(sender), resolve(receiver), content.toString(), timestamp));
+                }
+                timestamp = header.timestamp;
+                sender = header.sender;
+                receiver = header.receiver;
+                content = new StringBuilder(header.content);
+            }
+            if (content != null) {
+                messages.add(new Message(resolve(sender), resolve(receiver), content.toString(), timestamp));
+            }
+        }
+    }
+
+    /**
+     * Imports the given files into the message log of the working directory.
+     * Files ending in {@code .xml} are read as legacy ChatData.xml files, anything else as ChatData.txt mirrors.
+     *
+     * @param args the files to import.
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Uso: BulkImporter ChatData.txt [ChatData.xml ...]");
+            System.exit(2);
+        }
+        MessageLog log = MessageLog.getInstanceWithoutLegacyImport();
+        BulkImporter importer = new BulkImporter(log, UserDirectory.getInstance().getUsers(), ForkJoinPool.commonPool());
+        int status = 0;
+        for (String path : args) {
+            File file = new File(path);
+            try {
+                Result result = path.toLowerCase().endsWith(".xml") ? importer.importXml(file) : importer.importText(file);
+                System.out.println(path + ": " + result);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Error importing " + path, e);
+                status = 1;
+            }
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing the message log", e);
+            status = 1;
+        }
+        System.exit(status);
+    }
+}
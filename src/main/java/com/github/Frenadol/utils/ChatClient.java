@@ -0,0 +1,265 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection of one user to the {@link ChatServer}.
+ * Sent messages are written by a single writer thread, so they reach the server in the order they were sent
+ * and the caller never waits for the socket. A reader thread completes the future of each send when its
+ * ACK arrives and hands every delivered message to the listener.
+ */
+public class ChatClient {
+
+    private static final Logger logger = Logger.getLogger(ChatClient.class.getName());
+
+    private static ChatClient instance;
+    private static volatile ObjLongConsumer<Message> listener;
+
+    private final String userName;
+    private final Socket socket;
+    private final OutputStream output;
+    private final DataInputStream input;
+    private final ExecutorService writer;
+    private final Thread reader;
+    private final Map<Long, CompletableFuture<Long>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile boolean open = true;
+
+    /**
+     * Connects to a chat server and introduces the user.
+     *
+     * @param address the address of the server.
+     * @param userName the name of the user of this connection.
+     * @param credential the password hash of the user, which the server checks before accepting messages.
+     * @throws IOException if the server cannot be reached.
+     */
+    public ChatClient(InetSocketAddress address, String userName, String credential) throws IOException {
+        this.userName = userName;
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            output = new BufferedOutputStream(socket.getOutputStream());
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            write(ChatProtocol.hello(userName, credential));
+            output.flush();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chattot-client-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reader = new Thread(this::readLoop, "chattot-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Returns the connection of a user to the shared server, connecting if needed.
+     * If no server is running yet, this process starts it; if another instance wins the race
+     * for the port, this one connects to it instead.
+     *
+     * @param userName the name of the logged in user.
+     * @param credential the password hash of the logged in user.
+     * @return the shared ChatClient of that user.
+     * @throws IOException if no server can be reached or started.
+     */
+    public static synchronized ChatClient connect(String userName, String credential) throws IOException {
+        if (instance != null && instance.isOpen() && instance.userName.equals(userName)) {
+            return instance;
+        }
+        if (instance != null) {
+            instance.close();
+        }
+
+        InetSocketAddress address = ChatServer.getDefaultAddress();
+        try {
+            instance = new ChatClient(address, userName, credential);
+        } catch (ConnectException e) {
+            try {
+                ChatServer.startShared();
+            } catch (BindException alreadyBound) {
+                logger.log(Level.INFO, "Another instance started the chat server first");
+            }
+            instance = new ChatClient(address, userName, credential);
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the listener that receives the messages delivered by the server, together with their
+     * position in the message log, on the reader thread. It stays in place across reconnections.
+     *
+     * @param onMessage the listener, or null to ignore delivered messages.
+     */
+    public static void setListener(ObjLongConsumer<Message> onMessage) {
+        listener = onMessage;
+    }
+
+    /**
+     * Closes the shared connection, if there is one.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Sends a message of this user to the server.
+     *
+     * @param message the message to send; its sender must be the user of this connection.
+     * @return a future with the position of the message once the server has stored it,
+     *         completed exceptionally if it was rejected or the connection was lost.
+     */
+    public CompletableFuture<Long> send(Message message) {
+        long id = nextId.incrementAndGet();
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        if (!open) {
+            future.completeExceptionally(new IOException("Not connected to the chat server"));
+            return future;
+        }
+
+        ByteBuffer frame = ChatProtocol.send(id, message);
+        pending.put(id, future);
+        if (!open && pending.remove(id) != null) {
+            future.completeExceptionally(new IOException("Not connected to the chat server"));
+            return future;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    write(frame);
+                    output.flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(id);
+            future.completeExceptionally(new IOException("Not connected to the chat server", e));
+        }
+        return future;
+    }
+
+    /**
+     * Returns whether the connection is still up.
+     *
+     * @return true until the connection is closed or lost.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the connection. Sends still waiting for their ACK fail.
+     */
+    public void close() {
+        fail(new IOException("Connection to the chat server closed"));
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    private void readLoop() {
+        try {
+            while (open) {
+                int length = input.readInt();
+                if (length < 1 || length > ChatProtocol.MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                input.readFully(frame);
+                ByteBuffer payload = ByteBuffer.wrap(frame, 1, length - 1);
+                handle(frame[0], payload);
+            }
+        } catch (EOFException e) {
+            fail(new IOException("The chat server closed the connection"));
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("Malformed frame from the chat server", e));
+        }
+    }
+
+    private void handle(byte type, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case ChatProtocol.ACK: {
+                CompletableFuture<Long> future = pending.remove(payload.getLong());
+                if (future != null) {
+                    future.complete(payload.getLong());
+                }
+                break;
+            }
+            case ChatProtocol.NACK: {
+                CompletableFuture<Long> future = pending.remove(payload.getLong());
+                if (future != null) {
+                    future.completeExceptionally(new IOException(ChatProtocol.getString(payload)));
+                }
+                break;
+            }
+            case ChatProtocol.DELIVER: {
+                long position = payload.getLong();
+                ObjLongConsumer<Message> onMessage = listener;
+                if (onMessage != null) {
+                    onMessage.accept(ChatProtocol.readDeliver(payload), position);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    private void fail(IOException error) {
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+        }
+        if (!socket.isClosed()) {
+            logger.log(Level.FINE, "Chat connection lost", error);
+        }
+        writer.shutdown();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to release.
+        }
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Long> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The framed binary protocol spoken between {@link ChatServer} and {@link ChatClient}.
+ * Every frame is {@code [int length][byte type][payload]}, where the length counts the type and the payload.
+ * Strings are written as an int byte count followed by UTF-8, and timestamps as epoch microseconds,
+ * the same encoding the {@link MessageLog} uses for its records.
+ *
+ * <ul>
+ *     <li>HELLO, client to server: {@code [string user][string credential]}, names the user of the connection
+ *     and proves it with the password hash of the user, as stored in the {@link CredentialIndex}.</li>
+ *     <li>SEND, client to server: {@code [long id][long timestamp][string receiver][string content]}.</li>
+ *     <li>ACK, server to client: {@code [long id][long position]}, the message was stored.</li>
+ *     <li>NACK, server to client: {@code [long id][string reason]}, the message was not stored.</li>
+ *     <li>DELIVER, server to client: {@code [long position][long timestamp][string sender][string receiver][string content]}.</li>
+ * </ul>
+ */
+final class ChatProtocol {
+
+    static final byte HELLO = 1;
+    static final byte SEND = 2;
+    static final byte ACK = 3;
+    static final byte NACK = 4;
+    static final byte DELIVER = 5;
+
+    static final int LENGTH_BYTES = Integer.BYTES;
+    static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    private ChatProtocol() {}
+
+    static ByteBuffer hello(String userName, String credential) {
+        byte[] user = utf8(userName);
+        byte[] proof = utf8(credential == null ? "" : credential);
+        return frame(HELLO, 2 * Integer.BYTES + user.length + proof.length)
+                .putInt(user.length).put(user)
+                .putInt(proof.length).put(proof)
+                .flip();
+    }
+
+    static ByteBuffer send(long id, Message message) {
+        byte[] receiver = utf8(message.getReceiver().getName());
+        byte[] content = utf8(message.getContent());
+        return frame(SEND, 2 * Long.BYTES + 2 * Integer.BYTES + receiver.length + content.length)
+                .putLong(id)
+                .putLong(MessageLog.toEpochMicros(message.getTimestamp()))
+                .putInt(receiver.length).put(receiver)
+                .putInt(content.length).put(content)
+                .flip();
+    }
+
+    static ByteBuffer ack(long id, long position) {
+        return frame(ACK, 2 * Long.BYTES)
+                .putLong(id)
+                .putLong(position)
+                .flip();
+    }
+
+    static ByteBuffer nack(long id, String reason) {
+        byte[] text = utf8(reason == null ? "" : reason);
+        return frame(NACK, Long.BYTES + Integer.BYTES + text.length)
+                .putLong(id)
+                .putInt(text.length).put(text)
+                .flip();
+    }
+
+    static ByteBuffer deliver(Message message, long position) {
+        byte[] sender = utf8(message.getSender().getName());
+        byte[] receiver = utf8(message.getReceiver().getName());
+        byte[] content = utf8(message.getContent());
+        return frame(DELIVER, 2 * Long.BYTES + 3 * Integer.BYTES + sender.length + receiver.length + content.length)
+                .putLong(position)
+                .putLong(MessageLog.toEpochMicros(message.getTimestamp()))
+                .putInt(sender.length).put(sender)
+                .putInt(receiver.length).put(receiver)
+                .putInt(content.length).put(content)
+                .flip();
+    }
+
+    /**
+     * Reads the payload of a SEND frame, after its id, as a message from the given sender.
+     */
+    static Message readSend(ByteBuffer payload, String senderName) {
+        long micros = payload.getLong();
+        String receiver = getString(payload);
+        String content = getString(payload);
+        return new Message(new User(senderName, null, null, null), new User(receiver, null, null, null),
+                content, MessageLog.fromEpochMicros(micros));
+    }
+
+    /**
+     * Reads the payload of a DELIVER frame, after its position.
+     */
+    static Message readDeliver(ByteBuffer payload) {
+        long micros = payload.getLong();
+        String sender = getString(payload);
+        String receiver = getString(payload);
+        String content = getString(payload);
+        return new Message(new User(sender, null, null, null), new User(receiver, null, null, null),
+                content, MessageLog.fromEpochMicros(micros));
+    }
+
+    static String getString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IllegalArgumentException("Malformed string of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer frame(byte type, int payloadBytes) {
+        int length = 1 + payloadBytes;
+        if (length > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes is too large");
+        }
+        return ByteBuffer.allocate(LENGTH_BYTES + length).putInt(length).put(type);
+    }
+
+    static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
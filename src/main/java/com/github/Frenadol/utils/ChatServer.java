@@ -0,0 +1,481 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless chat server that relays messages between the running instances of the application.
+ * A single thread serves every connection through a {@link Selector}: frames of the {@link ChatProtocol}
+ * are read without blocking, every sent message is handed to the store, and once it is stored the sender
+ * gets an ACK and every other connection of the sender and the receiver gets a DELIVER.
+ * The server only listens on the loopback interface, and a connection may only send once its HELLO
+ * carried the right credential of the user it names; a connection with a wrong credential is closed.
+ */
+public class ChatServer {
+
+    private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
+
+    private static final int DEFAULT_PORT = 47800;
+    private static final int READ_BUFFER_BYTES = 4 * 1024;
+    private static final long MAX_QUEUED_BYTES = 4L * 1024 * 1024;
+
+    private static ChatServer instance;
+
+    private final Function<Message, CompletableFuture<Long>> store;
+    private final Authenticator authenticator;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Map<String, Set<Connection>> sessions = new HashMap<>();
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final Thread loop;
+    private volatile boolean running;
+    private volatile int connectionCount;
+
+    /**
+     * Binds a server to the given address. Nothing is served until {@link #start()} is called.
+     *
+     * @param address the address to listen on; use port 0 for any free port.
+     * @param store stores a sent message and completes with its position, or fails if it cannot be stored.
+     * @param authenticator checks the credential a client sends in its HELLO.
+     * @throws IOException if the address cannot be bound.
+     */
+    public ChatServer(InetSocketAddress address, Function<Message, CompletableFuture<Long>> store,
+                      Authenticator authenticator) throws IOException {
+        this.store = store;
+        this.authenticator = authenticator;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address, 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        this.loop = new Thread(this::serve, "chattot-server");
+        this.loop.setDaemon(true);
+    }
+
+    /**
+     * Checks that a client is allowed to act as the user it names.
+     */
+    public interface Authenticator {
+        /**
+         * @param userName the user named in the HELLO.
+         * @param credential the credential sent with it.
+         * @return true if the credential belongs to the user.
+         * @throws IOException if the stored credentials cannot be read.
+         */
+        boolean check(String userName, String credential) throws IOException;
+    }
+
+    /**
+     * Checks a credential against the password hash in the {@link CredentialIndex} of the users file.
+     *
+     * @param userName the name of the user.
+     * @param credential the password hash sent by the client.
+     * @return true if the user exists and the hash matches.
+     * @throws IOException if the credential index cannot be read.
+     */
+    public static boolean checkPasswordHash(String userName, String credential) throws IOException {
+        String stored = UserDirectory.getInstance().getCredentials().getPasswordHash(userName);
+        return stored != null && credential != null
+                && MessageDigest.isEqual(ChatProtocol.utf8(stored), ChatProtocol.utf8(credential));
+    }
+
+    /**
+     * Returns the loopback address of the shared server, on port {@code chattot.server.port}.
+     *
+     * @return the address clients connect to.
+     */
+    public static InetSocketAddress getDefaultAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.getInteger("chattot.server.port", DEFAULT_PORT));
+    }
+
+    /**
+     * Starts the shared server of this process, which stores messages through the group commit writer.
+     *
+     * @return the shared ChatServer instance.
+     * @throws IOException if the port is already taken, usually by the server of another instance.
+     */
+    public static synchronized ChatServer startShared() throws IOException {
+        if (instance == null) {
+            GroupCommitWriter writer = GroupCommitWriter.getInstance();
+            ChatServer server = new ChatServer(getDefaultAddress(), writer::submit, ChatServer::checkPasswordHash);
+            server.start();
+            Metrics.getInstance().gauge("chattot_server_connections", "Open connections to the chat server hosted by this instance",
+                    server::getConnectionCount);
+            instance = server;
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the shared server, if this process started one.
+     *
+     * @throws InterruptedException if interrupted while waiting for the server thread.
+     */
+    public static void shutdown() throws InterruptedException {
+        ChatServer server;
+        synchronized (ChatServer.class) {
+            server = instance;
+            instance = null;
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Starts the event loop thread.
+     */
+    public void start() {
+        running = true;
+        loop.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the local port.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of open client connections.
+     *
+     * @return the connection count.
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Closes every connection and stops the event loop.
+     *
+     * @throws InterruptedException if interrupted while waiting for the server thread.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        if (loop.isAlive()) {
+            loop.join();
+        }
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+
+                Set<SelectionKey> selected = selector.selectedKeys();
+                for (SelectionKey key : selected) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(connection);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (key.attachment() != null) {
+                            logger.log(Level.FINE, "Closing chat connection", e);
+                            disconnect((Connection) key.attachment());
+                        } else {
+                            logger.log(Level.WARNING, "Error accepting chat connection", e);
+                        }
+                    }
+                }
+                selected.clear();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Chat server stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            closeQuietly(serverChannel.keyFor(selector));
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error closing chat server", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount++;
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        int read = connection.channel.read(connection.input);
+        if (read < 0) {
+            disconnect(connection);
+            return;
+        }
+        handleFrames(connection);
+    }
+
+    /**
+     * Handles the complete frames in the input buffer of a connection. While its HELLO is being checked,
+     * the remaining frames stay in the buffer and are handled once the check is done.
+     */
+    private void handleFrames(Connection connection) throws IOException {
+        ByteBuffer input = connection.input;
+        input.flip();
+        while (!connection.authenticating && input.remaining() >= ChatProtocol.LENGTH_BYTES) {
+            int length = input.getInt(input.position());
+            if (length < 1 || length > ChatProtocol.MAX_FRAME_BYTES) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (input.remaining() < ChatProtocol.LENGTH_BYTES + length) {
+                break;
+            }
+            ByteBuffer frame = input.slice();
+            frame.position(ChatProtocol.LENGTH_BYTES);
+            frame.limit(ChatProtocol.LENGTH_BYTES + length);
+            input.position(input.position() + ChatProtocol.LENGTH_BYTES + length);
+            handle(connection, frame.get(), frame);
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+        }
+        input.compact();
+
+        if (!input.hasRemaining()) {
+            // A frame larger than the buffer is on its way; make room for all of it.
+            int length = input.getInt(0);
+            ByteBuffer larger = ByteBuffer.allocate(ChatProtocol.LENGTH_BYTES + length);
+            input.flip();
+            larger.put(input);
+            connection.input = larger;
+        }
+    }
+
+    private void handle(Connection connection, byte type, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case ChatProtocol.HELLO:
+                removeSession(connection);
+                connection.userName = null;
+                String userName = ChatProtocol.getString(payload);
+                String credential = ChatProtocol.getString(payload);
+                // The check may read the users file and wait for its lock, so it runs off the event loop,
+                // and the connection is not read meanwhile.
+                connection.authenticating = true;
+                updateInterest(connection);
+                AsyncStore.supply(() -> authenticator.check(userName, credential)).whenComplete((accepted, error) -> {
+                    completions.add(() -> onAuthenticated(connection, userName, accepted, error));
+                    selector.wakeup();
+                });
+                break;
+            case ChatProtocol.SEND:
+                long id = payload.getLong();
+                if (connection.userName == null) {
+                    enqueue(connection, ChatProtocol.nack(id, "HELLO expected before SEND"));
+                    return;
+                }
+                Message message = ChatProtocol.readSend(payload, connection.userName);
+                store.apply(message).whenComplete((position, error) -> {
+                    completions.add(() -> onStored(connection, id, message, position, error));
+                    selector.wakeup();
+                });
+                break;
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    /**
+     * Runs on the event loop once the credential of a HELLO was checked. An accepted connection joins the
+     * session of its user and the frames that arrived behind the HELLO are handled; any other is closed.
+     */
+    private void onAuthenticated(Connection connection, String userName, Boolean accepted, Throwable error) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        connection.authenticating = false;
+        if (error != null) {
+            logger.log(Level.WARNING, "Cannot check the credential of " + userName, AsyncStore.unwrap(error));
+            disconnect(connection);
+            return;
+        }
+        if (!accepted) {
+            logger.log(Level.WARNING, "Rejected a chat connection with a wrong credential for " + userName);
+            disconnect(connection);
+            return;
+        }
+        connection.userName = userName;
+        sessions.computeIfAbsent(userName, name -> new LinkedHashSet<>()).add(connection);
+        try {
+            updateInterest(connection);
+            handleFrames(connection);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.FINE, "Closing chat connection", e);
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Runs on the event loop once the store has finished with a message.
+     */
+    private void onStored(Connection origin, long id, Message message, Long position, Throwable error) {
+        if (error != null) {
+            sendQuietly(origin, ChatProtocol.nack(id, AsyncStore.unwrap(error).getMessage()));
+            return;
+        }
+        sendQuietly(origin, ChatProtocol.ack(id, position));
+
+        Set<Connection> recipients = new LinkedHashSet<>(sessions.getOrDefault(message.getReceiver().getName(), Collections.emptySet()));
+        recipients.addAll(sessions.getOrDefault(message.getSender().getName(), Collections.emptySet()));
+        recipients.remove(origin);
+        if (recipients.isEmpty()) {
+            return;
+        }
+        ByteBuffer frame = ChatProtocol.deliver(message, position);
+        for (Connection recipient : recipients) {
+            sendQuietly(recipient, frame.duplicate());
+        }
+    }
+
+    private void sendQuietly(Connection connection, ByteBuffer frame) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        try {
+            enqueue(connection, frame);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Closing chat connection", e);
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Queues a frame for a connection and writes as much of the queue as the socket takes right away.
+     * A client that stops reading is disconnected instead of letting its queue grow without bound.
+     */
+    private void enqueue(Connection connection, ByteBuffer frame) throws IOException {
+        if (connection.queuedBytes + frame.remaining() > MAX_QUEUED_BYTES) {
+            throw new IOException("Client of " + connection.userName + " is not reading");
+        }
+        connection.output.add(frame);
+        connection.queuedBytes += frame.remaining();
+        flush(connection);
+    }
+
+    private void flush(Connection connection) throws IOException {
+        ByteBuffer frame;
+        while ((frame = connection.output.peek()) != null) {
+            int written = connection.channel.write(frame);
+            connection.queuedBytes -= written;
+            if (frame.hasRemaining()) {
+                break;
+            }
+            connection.output.poll();
+        }
+        updateInterest(connection);
+    }
+
+    /**
+     * Reads from a connection unless its HELLO is being checked, and writes to it while frames are queued.
+     */
+    private static void updateInterest(Connection connection) {
+        int ops = (connection.authenticating ? 0 : SelectionKey.OP_READ)
+                | (connection.output.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        if (connection.key.interestOps() != ops) {
+            connection.key.interestOps(ops);
+        }
+    }
+
+    private void disconnect(Connection connection) {
+        removeSession(connection);
+        if (connection.channel.isOpen()) {
+            connectionCount--;
+        }
+        closeQuietly(connection.key);
+    }
+
+    private void removeSession(Connection connection) {
+        if (connection.userName == null) {
+            return;
+        }
+        Set<Connection> connections = sessions.get(connection.userName);
+        if (connections != null) {
+            connections.remove(connection);
+            if (connections.isEmpty()) {
+                sessions.remove(connection.userName);
+            }
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        if (key == null) {
+            return;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Nothing else to release.
+        }
+    }
+
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private long queuedBytes;
+        private String userName;
+        private boolean authenticating;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.Frenadol.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A sealed {@link MessageLog} segment kept compressed in the cold tier.
+ * The bytes of the segment are split into fixed-size blocks that are deflated independently,
+ * and a table of block offsets is kept in the header, so reading one record only inflates
+ * the block or two that hold it. The uncompressed bytes are exactly those of the original segment,
+ * so the positions stored in the indexes keep pointing at the same records.
+ */
+class ColdSegment {
+
+    static final String SUFFIX = ".cold";
+
+    private static final int MAGIC = 0x43484331;
+    private static final int DEFAULT_BLOCK_BYTES = 64 * 1024;
+
+    private final File file;
+    private final int blockBytes;
+    private final long length;
+    private final long lastMicros;
+    private final long[] blockOffsets;
+    private int cachedBlock = -1;
+    private byte[] cachedBytes;
+
+    /**
+     * Opens a cold segment written by {@link #write(File, File, long)}.
+     *
+     * @param file the cold segment file.
+     * @throws IOException if the file cannot be read or is not a cold segment.
+     */
+    ColdSegment(File file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES * 2);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a cold segment: " + file);
+            }
+            blockBytes = header.getInt();
+            length = header.getLong();
+            lastMicros = header.getLong();
+            int blocks = header.getInt();
+
+            ByteBuffer table = ByteBuffer.allocate((blocks + 1) * Long.BYTES);
+            readFully(channel, table, header.capacity());
+            table.flip();
+            blockOffsets = new long[blocks + 1];
+            for (int i = 0; i <= blocks; i++) {
+                blockOffsets[i] = table.getLong();
+            }
+        }
+    }
+
+    /**
+     * Compresses a sealed segment into a cold segment. The cold file only appears once it is complete.
+     *
+     * @param source the sealed segment.
+     * @param target the cold segment to create.
+     * @param lastMicros the timestamp of the newest record of the segment, used by the retention policy.
+     * @throws IOException if the segment cannot be read or the cold segment cannot be written.
+     */
+    static void write(File source, File target, long lastMicros) throws IOException {
+        byte[] bytes = Files.readAllBytes(source.toPath());
+        int blocks = (bytes.length + DEFAULT_BLOCK_BYTES - 1) / DEFAULT_BLOCK_BYTES;
+        long headerBytes = Integer.BYTES * 3 + Long.BYTES * 2 + (blocks + 1) * (long) Long.BYTES;
+
+        File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long[] offsets = new long[blocks + 1];
+            long position = headerBytes;
+            byte[] output = new byte[DEFAULT_BLOCK_BYTES + DEFAULT_BLOCK_BYTES / 8 + 64];
+            for (int i = 0; i < blocks; i++) {
+                offsets[i] = position;
+                int start = i * DEFAULT_BLOCK_BYTES;
+                deflater.reset();
+                deflater.setInput(bytes, start, Math.min(DEFAULT_BLOCK_BYTES, bytes.length - start));
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int compressed = deflater.deflate(output);
+                    ByteBuffer buffer = ByteBuffer.wrap(output, 0, compressed);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+            }
+            offsets[blocks] = position;
+
+            ByteBuffer header = ByteBuffer.allocate((int) headerBytes);
+            header.putInt(MAGIC).putInt(DEFAULT_BLOCK_BYTES).putLong(bytes.length).putLong(lastMicros).putInt(blocks);
+            for (long offset : offsets) {
+                header.putLong(offset);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        } finally {
+            deflater.end();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the size of the segment before compression.
+     *
+     * @return the uncompressed length in bytes.
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Returns the timestamp of the newest record, in epoch microseconds.
+     *
+     * @return the timestamp of the last record.
+     */
+    long getLastMicros() {
+        return lastMicros;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads a range of the uncompressed segment.
+     *
+     * @param offset the offset within the segment.
+     * @param count the number of bytes to read.
+     * @return a buffer with the requested bytes.
+     * @throws IOException if the range is outside the segment or a block cannot be inflated.
+     */
+    synchronized ByteBuffer read(long offset, int count) throws IOException {
+        if (offset < 0 || count < 0 || offset + count > length) {
+            throw new IOException("Range " + offset + "+" + count + " is outside " + file);
+        }
+        ByteBuffer result = ByteBuffer.allocate(count);
+        while (result.hasRemaining()) {
+            int block = (int) (offset / blockBytes);
+            byte[] bytes = block(block);
+            int within = (int) (offset - (long) block * blockBytes);
+            int chunk = Math.min(result.remaining(), bytes.length - within);
+            result.put(bytes, within, chunk);
+            offset += chunk;
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Inflates the whole segment.
+     *
+     * @return the uncompressed bytes of the segment.
+     * @throws IOException if a block cannot be inflated.
+     */
+    ByteBuffer readAll() throws IOException {
+        return read(0, (int) length);
+    }
+
+    private byte[] block(int block) throws IOException {
+        if (block == cachedBlock) {
+            return cachedBytes;
+        }
+        int compressedBytes = (int) (blockOffsets[block + 1] - blockOffsets[block]);
+        ByteBuffer compressed = ByteBuffer.allocate(compressedBytes);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, compressed, blockOffsets[block]);
+        }
+
+        int size = (int) Math.min(blockBytes, length - (long) block * blockBytes);
+        byte[] bytes = new byte[size];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressedBytes);
+            int inflated = 0;
+            while (inflated < size && !inflater.finished()) {
+                int read = inflater.inflate(bytes, inflated, size - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+            if (inflated != size) {
+                throw new IOException("Corrupted block " + block + " in " + file);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block " + block + " in " + file, e);
+        } finally {
+            inflater.end();
+        }
+        cachedBlock = block;
+        cachedBytes = bytes;
+        return bytes;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of cold segment");
+            }
+            position += read;
+        }
+    }
+}
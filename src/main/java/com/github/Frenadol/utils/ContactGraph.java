@@ -0,0 +1,415 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Who has whom as a contact, kept next to the users file as a list of edge records.
+ * Every user name gets a dense integer id in order of first appearance, and the contacts of a user
+ * are a hash set of ids, so checking whether two users have each other as contacts is two lookups,
+ * and the users someone does not have as contacts are a set difference over a bitset of all users.
+ * <p>
+ * Like the {@link CredentialIndex}, the file starts with the modification time and size the users file had
+ * when the graph last matched it. Registrations and new contacts append records; any other change to the
+ * users file is noticed from its modification time and size and the graph is rebuilt from it.
+ * <p>
+ * Other instances append to the same file. The graph is read again whenever the users file or the graph
+ * file changed since it was loaded, and both reading and appending happen under the {@link StoreLock}
+ * of the users file, so new ids are always handed out after the records of every other instance.
+ */
+public class ContactGraph {
+
+    private static final int MAGIC = 0x43475231;
+    private static final int HEADER_BYTES = Integer.BYTES + 2 * Long.BYTES;
+    private static final byte USER = 1;
+    private static final byte NAME = 2;
+    private static final byte EDGE = 3;
+
+    private final File file;
+    private final File usersFile;
+    private final File lockFile;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<Set<Integer>> contacts = new ArrayList<>();
+    private final BitSet registered = new BitSet();
+    private long usersModified = -1;
+    private long usersLength = -1;
+    private long graphLength = -1;
+    private boolean loaded;
+    private StoreLock lock;
+
+    /**
+     * Creates the contact graph of a users file. Nothing is read until it is first used.
+     *
+     * @param file the graph file.
+     * @param usersFile the users XML file the graph is built from.
+     * @param lockFile the lock file of the users file.
+     */
+    public ContactGraph(File file, File usersFile, File lockFile) {
+        this.file = file;
+        this.usersFile = usersFile;
+        this.lockFile = lockFile;
+    }
+
+    /**
+     * Checks whether a user has another as a contact.
+     *
+     * @param userName the name of the user.
+     * @param contactName the name of the possible contact.
+     * @return true if the contact is in the contact list of the user.
+     * @throws IOException if the graph has to be rebuilt and the users file cannot be read.
+     */
+    public boolean hasContact(String userName, String contactName) throws IOException {
+        ensureCurrent();
+        synchronized (this) {
+            Integer user = ids.get(userName);
+            Integer contact = ids.get(contactName);
+            return user != null && contact != null && contacts.get(user).contains(contact);
+        }
+    }
+
+    /**
+     * Checks whether two users have each other as contacts.
+     *
+     * @param userA the name of one user.
+     * @param userB the name of the other user.
+     * @return true if each one is in the contact list of the other.
+     * @throws IOException if the graph has to be rebuilt and the users file cannot be read.
+     */
+    public boolean areMutualContacts(String userA, String userB) throws IOException {
+        ensureCurrent();
+        synchronized (this) {
+            Integer a = ids.get(userA);
+            Integer b = ids.get(userB);
+            return a != null && b != null && contacts.get(a).contains(b) && contacts.get(b).contains(a);
+        }
+    }
+
+    /**
+     * Returns the registered users that a user does not have as contacts, leaving out the user.
+     *
+     * @param userName the name of the user.
+     * @return the names of the other users, in order of registration.
+     * @throws IOException if the graph has to be rebuilt and the users file cannot be read.
+     */
+    public List<String> getNonContacts(String userName) throws IOException {
+        ensureCurrent();
+        synchronized (this) {
+            BitSet others = (BitSet) registered.clone();
+            Integer user = ids.get(userName);
+            if (user != null) {
+                others.clear(user);
+                for (int contact : contacts.get(user)) {
+                    others.clear(contact);
+                }
+            }
+            List<String> result = new ArrayList<>(others.cardinality());
+            for (int id = others.nextSetBit(0); id >= 0; id = others.nextSetBit(id + 1)) {
+                result.add(names.get(id));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Adds a newly registered user. Call {@link #markCurrent()} once the users file is saved.
+     * The graph is read again first if another instance changed it.
+     *
+     * @param name the name of the user.
+     * @throws IOException if the graph cannot be locked, read or written.
+     */
+    public void addUser(String name) throws IOException {
+        lock().locked(generation -> {
+            synchronized (this) {
+                reloadIfStale();
+                try (DataOutputStream output = openForAppend()) {
+                    output.writeByte(USER);
+                    output.writeUTF(name);
+                }
+                registered.set(idOf(name));
+                graphLength = file.length();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Adds a contact to a user. Call {@link #markCurrent()} once the users file is saved.
+     *
+     * @param userName the name of the user that gets the new contact.
+     * @param contactName the name of the contact.
+     * @throws IOException if the graph cannot be locked, read or written.
+     */
+    public void addContact(String userName, String contactName) throws IOException {
+        lock().locked(generation -> {
+            synchronized (this) {
+                reloadIfStale();
+                try (DataOutputStream output = openForAppend()) {
+                    int user = idOf(userName, output);
+                    int contact = idOf(contactName, output);
+                    output.writeByte(EDGE);
+                    output.writeInt(user);
+                    output.writeInt(contact);
+                    contacts.get(user).add(contact);
+                }
+                graphLength = file.length();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Records that the users file was just saved by this process, so the graph still matches it.
+     * If another instance appended to the graph in the meantime, the graph is read again on next use.
+     *
+     * @throws IOException if the header cannot be written.
+     */
+    public void markCurrent() throws IOException {
+        lock().locked(generation -> {
+            synchronized (this) {
+                if (loaded) {
+                    if (file.length() != graphLength) {
+                        loaded = false;
+                    }
+                    usersModified = usersFile.lastModified();
+                    usersLength = usersFile.length();
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.writeInt(MAGIC);
+                        raf.writeLong(usersModified);
+                        raf.writeLong(usersLength);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Returns the size of the graph file, so records added for a change that is not saved can be rolled back.
+     * Must be called under the lock of the users file.
+     *
+     * @return the length of the graph file in bytes.
+     */
+    public synchronized long length() {
+        return file.length();
+    }
+
+    /**
+     * Cuts the graph file back to an earlier length and forgets the loaded graph,
+     * after the users file could not be saved with the records added since.
+     *
+     * @param length the length returned by {@link #length()} before the records were added.
+     * @throws IOException if the graph cannot be locked or truncated.
+     */
+    public void rollBack(long length) throws IOException {
+        lock().locked(generation -> {
+            synchronized (this) {
+                loaded = false;
+                if (file.length() > length) {
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.setLength(length);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Forgets the loaded graph, so the next query reads the file again and rebuilds it if it is stale.
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+    }
+
+    /**
+     * Reads the graph again under the lock if it is stale. The lock is taken before the monitor of the graph,
+     * in the same order as the changes saved by the {@link UserDirectory}.
+     */
+    private void ensureCurrent() throws IOException {
+        if (!isStale()) {
+            return;
+        }
+        lock().locked(generation -> {
+            synchronized (this) {
+                reloadIfStale();
+            }
+            return null;
+        });
+    }
+
+    private synchronized boolean isStale() {
+        return !loaded || usersFile.lastModified() != usersModified || usersFile.length() != usersLength
+                || file.length() != graphLength;
+    }
+
+    private void reloadIfStale() throws IOException {
+        if (isStale()) {
+            load();
+        }
+    }
+
+    private void load() throws IOException {
+        clear();
+        loaded = false;
+        if (!file.exists() || !readGraph()) {
+            rebuild();
+        }
+        graphLength = file.length();
+        loaded = true;
+    }
+
+    private StoreLock lock() throws IOException {
+        if (lock == null) {
+            lock = StoreLock.forFile(lockFile);
+        }
+        return lock;
+    }
+
+    private void clear() {
+        ids.clear();
+        names.clear();
+        contacts.clear();
+        registered.clear();
+    }
+
+    /**
+     * Returns the id of a name, giving it the next free id if it has none yet.
+     */
+    private int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+            contacts.add(new HashSet<>());
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of a name, writing a record for it first if it is new, so ids are replayed identically.
+     */
+    private int idOf(String name, DataOutputStream output) throws IOException {
+        if (!ids.containsKey(name)) {
+            output.writeByte(NAME);
+            output.writeUTF(name);
+        }
+        return idOf(name);
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Reads the graph file if it matches the current users file, cutting off a torn last record.
+     *
+     * @return false if the graph is missing, damaged or stale.
+     */
+    private boolean readGraph() throws IOException {
+        long validBytes = HEADER_BYTES;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                return false;
+            }
+            long modified = input.readLong();
+            long length = input.readLong();
+            if (modified != usersFile.lastModified() || length != usersFile.length()) {
+                return false;
+            }
+            usersModified = modified;
+            usersLength = length;
+            try {
+                while (true) {
+                    byte type = input.readByte();
+                    if (type == EDGE) {
+                        int user = input.readInt();
+                        int contact = input.readInt();
+                        if (user < 0 || user >= names.size() || contact < 0 || contact >= names.size()) {
+                            clear();
+                            return false;
+                        }
+                        contacts.get(user).add(contact);
+                        validBytes += 1 + 2 * Integer.BYTES;
+                    } else if (type == USER || type == NAME) {
+                        String name = input.readUTF();
+                        int id = idOf(name);
+                        if (type == USER) {
+                            registered.set(id);
+                        }
+                        validBytes += 3 + ConversationIndex.utfLength(name);
+                    } else {
+                        clear();
+                        return false;
+                    }
+                }
+            } catch (EOFException e) {
+                // End of the graph, or a torn record that is cut off below.
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(validBytes);
+        }
+        return true;
+    }
+
+    private void rebuild() throws IOException {
+        clear();
+        usersModified = usersFile.lastModified();
+        usersLength = usersFile.length();
+        List<User> users = new ArrayList<>();
+        StreamingXmlReader.forEachUser(usersFile.getPath(), false, users::add);
+
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(MAGIC);
+            output.writeLong(usersModified);
+            output.writeLong(usersLength);
+            users.removeIf(user -> user.getName() == null);
+            for (User user : users) {
+                if (!ids.containsKey(user.getName())) {
+                    output.writeByte(USER);
+                    output.writeUTF(user.getName());
+                }
+                registered.set(idOf(user.getName()));
+            }
+            for (User user : users) {
+                int id = ids.get(user.getName());
+                for (User contact : user.getContacts()) {
+                    if (contact.getName() == null) {
+                        continue;
+                    }
+                    int contactId = idOf(contact.getName(), output);
+                    if (contacts.get(id).add(contactId)) {
+                        output.writeByte(EDGE);
+                        output.writeInt(id);
+                        output.writeInt(contactId);
+                    }
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+import javafx.concurrent.Task;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports one conversation to a file in the background.
+ * The conversation is read from the {@link MessageLog} a page at a time through the conversation index
+ * and every page is written out before the next one is read, so memory stays the same whatever the
+ * length of the conversation. Progress counts exported messages; cancelling stops at the next page
+ * and deletes the partial file.
+ */
+public class ConversationExporter extends Task<Integer> {
+
+    /**
+     * The formats a conversation can be exported to. Any of them can also be gzip-compressed.
+     */
+    public enum Format {
+        /** One line per message, {@code [timestamp] sender a receiver: content}. */
+        TEXT(".txt"),
+        /** One JSON object per line, with timestamp, sender, receiver and content. */
+        JSON_LINES(".jsonl");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /** Extension added after the format's one for gzip-compressed exports. */
+    public static final String GZIP_EXTENSION = ".gz";
+
+    private static final int PAGE_SIZE = 512;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final MessageLog log;
+    private final String userA;
+    private final String userB;
+    private final File target;
+    private final Format format;
+    private final boolean gzip;
+
+    /**
+     * Creates an export of the conversation between two users. Nothing happens until the task is run.
+     *
+     * @param log the log holding the conversation.
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @param target the file to write.
+     * @param format the format to write.
+     * @param gzip whether the file is gzip-compressed.
+     */
+    public ConversationExporter(MessageLog log, String userA, String userB, File target, Format format, boolean gzip) {
+        this.log = log;
+        this.userA = userA;
+        this.userB = userB;
+        this.target = target;
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Creates an export whose format and compression follow the extension of the target file,
+     * e.g. {@code .jsonl.gz}. Files with any other extension are exported as plain text.
+     *
+     * @param log the log holding the conversation.
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @param target the file to write.
+     * @return the export task.
+     */
+    public static ConversationExporter forFile(MessageLog log, String userA, String userB, File target) {
+        String name = target.getName().toLowerCase();
+        boolean gzip = name.endsWith(GZIP_EXTENSION);
+        if (gzip) {
+            name = name.substring(0, name.length() - GZIP_EXTENSION.length());
+        }
+        Format format = name.endsWith(Format.JSON_LINES.getExtension()) ? Format.JSON_LINES : Format.TEXT;
+        return new ConversationExporter(log, userA, userB, target, format, gzip);
+    }
+
+    /**
+     * Writes the conversation.
+     *
+     * @return the number of exported messages.
+     * @throws IOException if the conversation cannot be read or the file cannot be written.
+     */
+    @Override
+    protected Integer call() throws IOException {
+        int total = log.getConversationIndex().size(userA, userB);
+        int exported = 0;
+        boolean completed = false;
+        updateProgress(0, total);
+
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream output = Channels.newOutputStream(channel);
+            if (gzip) {
+                output = new GZIPOutputStream(output, BUFFER_BYTES);
+            }
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_BYTES)) {
+                for (int from = 0; from < total && !isCancelled(); from += PAGE_SIZE) {
+                    List<Message> page = log.readConversation(userA, userB, from, Math.min(total, from + PAGE_SIZE));
+                    for (Message message : page) {
+                        write(writer, message);
+                    }
+                    exported += page.size();
+                    updateProgress(Math.min(total, from + PAGE_SIZE), total);
+                }
+            }
+            completed = !isCancelled();
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(target.toPath());
+            }
+        }
+        return exported;
+    }
+
+    private void write(Writer writer, Message message) throws IOException {
+        if (format == Format.JSON_LINES) {
+            writer.write("{\"timestamp\":\"");
+            writer.write(message.getTimestamp().toString());
+            writer.write("\",\"sender\":");
+            writeJsonString(writer, message.getSender().getName());
+            writer.write(",\"receiver\":");
+            writeJsonString(writer, message.getReceiver().getName());
+            writer.write(",\"content\":");
+            writeJsonString(writer, message.getContent());
+            writer.write("}\n");
+        } else {
+            writer.write("[" + message.getTimestamp() + "] " +
+                    message.getSender().getName() + " a " +
+                    message.getReceiver().getName() + ": " +
+                    message.getContent());
+            writer.write(System.lineSeparator());
+        }
+    }
+
+    private static void writeJsonString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
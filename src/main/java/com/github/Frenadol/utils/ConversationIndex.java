@@ -0,0 +1,168 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent index from a conversation (the unordered pair of user names) to the positions
+ * of its messages in the {@link MessageLog}.
+ * Every entry is appended to the index file as it is added, so the index never has to be rewritten.
+ * Positions arrive in ascending order; an entry for a position already indexed, which another instance
+ * sharing the file may have written too, is ignored.
+ */
+public class ConversationIndex implements MessageIndex {
+
+    private final File file;
+    private final Map<String, LongList> conversations = new HashMap<>();
+    private DataOutputStream output;
+    private long lastPosition = -1;
+
+    /**
+     * Loads the conversation index stored in the given file, creating it if needed.
+     * An entry torn by a crash at the end of the file is discarded.
+     *
+     * @param file the index file.
+     * @throws IOException if the file cannot be read.
+     */
+    public ConversationIndex(File file) throws IOException {
+        this.file = file;
+        long validBytes = 0;
+
+        if (file.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    String key = input.readUTF();
+                    long position = input.readLong();
+                    if (position > lastPosition) {
+                        conversations.computeIfAbsent(key, k -> new LongList()).add(position);
+                        lastPosition = position;
+                    }
+                    validBytes += 2 + utfLength(key) + Long.BYTES;
+                }
+            } catch (EOFException e) {
+                // End of the index, or a torn entry that is cut off below.
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validBytes);
+            }
+        }
+
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Builds the key of the conversation between two users, independent of who is the sender.
+     *
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @return the conversation key.
+     */
+    public static String key(String userA, String userB) {
+        return userA.compareTo(userB) <= 0 ? userA + '\u0000' + userB : userB + '\u0000' + userA;
+    }
+
+    @Override
+    public synchronized long getLastPosition() {
+        return lastPosition;
+    }
+
+    @Override
+    public synchronized void index(Message message, long position) throws IOException {
+        add(message, position);
+        output.flush();
+    }
+
+    @Override
+    public synchronized void indexAll(List<Message> messages, long[] positions) throws IOException {
+        for (int i = 0; i < messages.size(); i++) {
+            add(messages.get(i), positions[i]);
+        }
+        output.flush();
+    }
+
+    private void add(Message message, long position) throws IOException {
+        if (position <= lastPosition) {
+            return;
+        }
+        String key = key(message.getSender().getName(), message.getReceiver().getName());
+        output.writeUTF(key);
+        output.writeLong(position);
+        conversations.computeIfAbsent(key, k -> new LongList()).add(position);
+        lastPosition = position;
+    }
+
+    /**
+     * Returns the positions of every message exchanged between two users, oldest first.
+     *
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @return the message positions, empty if they never talked.
+     */
+    public synchronized long[] getPositions(String userA, String userB) {
+        LongList positions = conversations.get(key(userA, userB));
+        return positions == null ? new long[0] : positions.toArray();
+    }
+
+    /**
+     * Returns the number of messages exchanged between two users.
+     *
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @return the size of the conversation.
+     */
+    public synchronized int size(String userA, String userB) {
+        LongList positions = conversations.get(key(userA, userB));
+        return positions == null ? 0 : positions.size();
+    }
+
+    /**
+     * Returns the positions of a slice of the conversation between two users.
+     *
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @param from the index of the first message of the slice, inclusive.
+     * @param to the index of the last message of the slice, exclusive.
+     * @return the message positions of the slice.
+     */
+    public synchronized long[] getPositions(String userA, String userB, int from, int to) {
+        LongList positions = conversations.get(key(userA, userB));
+        if (positions == null) {
+            return new long[0];
+        }
+        return positions.toArray(Math.max(0, from), Math.min(to, positions.size()));
+    }
+
+    /**
+     * Closes the index file.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    /**
+     * Returns the number of bytes {@link DataOutputStream#writeUTF(String)} uses for a string, without the length prefix.
+     */
+    static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,280 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.ConversationSummary;
+import com.github.Frenadol.model.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent summary of every conversation in the {@link MessageLog}: the newest message and its time,
+ * how many messages were exchanged, how many each participant received, and up to where each
+ * participant has read. Every stored message updates the summary of its conversation in constant time,
+ * so the contact list can show the last message and the unread count of every contact, and sort by
+ * recency, without reading any message.
+ * <p>
+ * Like the {@link ConversationIndex}, the file is a list of records that are only ever appended:
+ * one per indexed message and one each time a participant reads a conversation. The read watermark of
+ * a participant is the number of messages they had received when they last read the conversation,
+ * so their unread count is what they received since.
+ * <p>
+ * Other instances append to the same file under the lock of the log. Before writing, the records they
+ * appended since are read first, so read watermarks of other instances show up without a restart.
+ */
+public class ConversationSummaries implements MessageIndex {
+
+    private static final byte MESSAGE = 1;
+    private static final byte READ = 2;
+    private static final int PREVIEW_LENGTH = 80;
+
+    private final File file;
+    private final Map<String, Entry> conversations = new HashMap<>();
+    private DataOutputStream output;
+    private long lastPosition = -1;
+    private long fileLength;
+
+    /**
+     * The summary of one conversation. The participants are ordered as in {@link ConversationIndex#key}.
+     */
+    private static final class Entry {
+        final String userA;
+        final String userB;
+        String lastSender;
+        String preview;
+        long lastMicros;
+        int count;
+        int receivedByA;
+        int receivedByB;
+        int readByA;
+        int readByB;
+
+        Entry(String userA, String userB) {
+            this.userA = userA;
+            this.userB = userB;
+        }
+    }
+
+    /**
+     * Loads the summaries stored in the given file, creating it if needed.
+     * A record torn by a crash at the end of the file is discarded.
+     *
+     * @param file the summaries file.
+     * @throws IOException if the file cannot be read.
+     */
+    public ConversationSummaries(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            readRecords();
+        }
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Reads the records other instances appended to the file since this one last read or wrote it.
+     * Must be called under the {@link StoreLock} of the log, so a record another instance is still
+     * writing is not mistaken for a torn one.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    public synchronized void catchUp() throws IOException {
+        if (file.length() > fileLength) {
+            readRecords();
+        }
+    }
+
+    /**
+     * Reads the records after the known length of the file and cuts off a torn last record.
+     */
+    private void readRecords() throws IOException {
+        long validBytes = fileLength;
+        try (FileInputStream stream = new FileInputStream(file)) {
+            stream.getChannel().position(fileLength);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+            while (true) {
+                byte type = input.readByte();
+                if (type == MESSAGE) {
+                    long position = input.readLong();
+                    String sender = input.readUTF();
+                    String receiver = input.readUTF();
+                    long micros = input.readLong();
+                    String preview = input.readUTF();
+                    if (position > lastPosition) {
+                        apply(sender, receiver, micros, preview);
+                        lastPosition = position;
+                    }
+                    validBytes += 1 + 2 * Long.BYTES + 6 + ConversationIndex.utfLength(sender)
+                            + ConversationIndex.utfLength(receiver) + ConversationIndex.utfLength(preview);
+                } else if (type == READ) {
+                    String reader = input.readUTF();
+                    String contact = input.readUTF();
+                    int watermark = input.readInt();
+                    applyRead(reader, contact, watermark);
+                    validBytes += 1 + 4 + ConversationIndex.utfLength(reader) + ConversationIndex.utfLength(contact) + Integer.BYTES;
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the summaries, or a torn record that is cut off below.
+        }
+        if (file.length() != validBytes) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validBytes);
+            }
+        }
+        fileLength = validBytes;
+    }
+
+    @Override
+    public synchronized long getLastPosition() {
+        return lastPosition;
+    }
+
+    @Override
+    public synchronized void index(Message message, long position) throws IOException {
+        catchUp();
+        add(message, position);
+        flush();
+    }
+
+    @Override
+    public synchronized void indexAll(List<Message> messages, long[] positions) throws IOException {
+        catchUp();
+        for (int i = 0; i < messages.size(); i++) {
+            add(messages.get(i), positions[i]);
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        output.flush();
+        fileLength = file.length();
+    }
+
+    private void add(Message message, long position) throws IOException {
+        if (position <= lastPosition) {
+            return;
+        }
+        String sender = message.getSender().getName();
+        String receiver = message.getReceiver().getName();
+        long micros = MessageLog.epochMicrosOf(message);
+        String preview = preview(message.getContent());
+        output.writeByte(MESSAGE);
+        output.writeLong(position);
+        output.writeUTF(sender);
+        output.writeUTF(receiver);
+        output.writeLong(micros);
+        output.writeUTF(preview);
+        apply(sender, receiver, micros, preview);
+        lastPosition = position;
+    }
+
+    private void apply(String sender, String receiver, long micros, String preview) {
+        Entry entry = entry(sender, receiver);
+        entry.count++;
+        if (receiver.equals(entry.userA)) {
+            entry.receivedByA++;
+        } else {
+            entry.receivedByB++;
+        }
+        if (micros >= entry.lastMicros || entry.lastSender == null) {
+            entry.lastSender = sender;
+            entry.preview = preview;
+            entry.lastMicros = micros;
+        }
+    }
+
+    private void applyRead(String reader, String contact, int watermark) {
+        Entry entry = entry(reader, contact);
+        if (reader.equals(entry.userA)) {
+            entry.readByA = Math.max(entry.readByA, Math.min(watermark, entry.receivedByA));
+        } else {
+            entry.readByB = Math.max(entry.readByB, Math.min(watermark, entry.receivedByB));
+        }
+    }
+
+    private Entry entry(String userA, String userB) {
+        return conversations.computeIfAbsent(ConversationIndex.key(userA, userB), key -> userA.compareTo(userB) <= 0
+                ? new Entry(userA, userB)
+                : new Entry(userB, userA));
+    }
+
+    /**
+     * Returns the summary of the conversation between a user and a contact, as seen by the user.
+     *
+     * @param user the name of the user the unread count is for.
+     * @param contact the name of the other participant.
+     * @return the summary, or null if they never exchanged a message.
+     */
+    public synchronized ConversationSummary getSummary(String user, String contact) {
+        Entry entry = conversations.get(ConversationIndex.key(user, contact));
+        if (entry == null || entry.count == 0) {
+            return null;
+        }
+        int unread = user.equals(entry.userA) ? entry.receivedByA - entry.readByA : entry.receivedByB - entry.readByB;
+        return new ConversationSummary(contact, entry.lastSender, entry.preview, entry.lastMicros, entry.count, unread);
+    }
+
+    /**
+     * Marks every message a user received from a contact so far as read.
+     * Called by {@link MessageLog#markRead(String, String)}, which holds the lock of the log.
+     *
+     * @param user the name of the user who read the conversation.
+     * @param contact the name of the other participant.
+     * @throws IOException if the watermark cannot be written.
+     */
+    synchronized void markRead(String user, String contact) throws IOException {
+        catchUp();
+        Entry entry = conversations.get(ConversationIndex.key(user, contact));
+        if (entry == null) {
+            return;
+        }
+        boolean isA = user.equals(entry.userA);
+        int received = isA ? entry.receivedByA : entry.receivedByB;
+        int read = isA ? entry.readByA : entry.readByB;
+        if (received == read) {
+            return;
+        }
+        output.writeByte(READ);
+        output.writeUTF(user);
+        output.writeUTF(contact);
+        output.writeInt(received);
+        flush();
+        applyRead(user, contact, received);
+    }
+
+    /**
+     * Closes the summaries file.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    /**
+     * Returns the beginning of a message on a single line, as shown in the contact list.
+     */
+    static String preview(String content) {
+        String line = content.replace('\r', ' ').replace('\n', ' ').trim();
+        if (line.length() <= PREVIEW_LENGTH) {
+            return line;
+        }
+        int end = PREVIEW_LENGTH - 1;
+        if (Character.isHighSurrogate(line.charAt(end - 1))) {
+            end--;
+        }
+        return line.substring(0, end) + "…";
+    }
+}
@@ -0,0 +1,254 @@
+package com.github.Frenadol.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact index from user name to password hash, kept next to the users file,
+ * so logging in is a single hash table lookup instead of a read of UsersData.xml.
+ * <p>
+ * The file starts with the modification time and size the users file had when the index last matched it,
+ * followed by one entry per user. Registration appends an entry; any other change to the users file,
+ * such as an edit by hand, is noticed from its modification time and size and the index is rebuilt by
+ * streaming the users file without images.
+ * <p>
+ * Like the {@link ContactGraph}, the index is read again whenever the users file or the index file changed
+ * since it was loaded, and it is read and appended to under the {@link StoreLock} of the users file, so
+ * users registered by other instances are never lost when this one registers a user.
+ */
+public class CredentialIndex {
+
+    private static final int MAGIC = 0x43524431;
+    private static final int HEADER_BYTES = Integer.BYTES + 2 * Long.BYTES;
+
+    private final File file;
+    private final File usersFile;
+    private final File lockFile;
+    private final Map<String, String> hashes = new HashMap<>();
+    private long usersModified = -1;
+    private long usersLength = -1;
+    private long indexLength = -1;
+    private boolean loaded;
+    private StoreLock lock;
+
+    /**
+     * Creates the index of a users file. Nothing is read until it is first used.
+     *
+     * @param file the index file.
+     * @param usersFile the users XML file the index is built from.
+     * @param lockFile the lock file of the users file.
+     */
+    public CredentialIndex(File file, File usersFile, File lockFile) {
+        this.file = file;
+        this.usersFile = usersFile;
+        this.lockFile = lockFile;
+    }
+
+    /**
+     * Returns the password hash of a user.
+     *
+     * @param name the name of the user.
+     * @return the SHA3-256 hash of the password, or null if there is no such user.
+     * @throws IOException if the index has to be rebuilt and the users file cannot be read.
+     */
+    public String getPasswordHash(String name) throws IOException {
+        if (isStale()) {
+            lock().locked(generation -> {
+                synchronized (this) {
+                    reloadIfStale();
+                }
+                return null;
+            });
+        }
+        synchronized (this) {
+            return hashes.get(name);
+        }
+    }
+
+    /**
+     * Adds a newly registered user. Call {@link #markCurrent()} once the users file is saved.
+     *
+     * @param name the name of the user.
+     * @param passwordHash the hash of the password.
+     * @throws IOException if the index cannot be locked, read or written.
+     */
+    public void put(String name, String passwordHash) throws IOException {
+        lock().locked(generation -> {
+            synchronized (this) {
+                reloadIfStale();
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                    output.writeUTF(name);
+                    output.writeUTF(passwordHash);
+                }
+                hashes.put(name, passwordHash);
+                indexLength = file.length();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Records that the users file was just saved by this process, so the index still matches it.
+     * If another instance appended to the index in the meantime, the index is read again on next use.
+     *
+     * @throws IOException if the header cannot be written.
+     */
+    public void markCurrent() throws IOException {
+        lock().locked(generation -> {
+            synchronized (this) {
+                if (loaded) {
+                    if (file.length() != indexLength) {
+                        loaded = false;
+                    }
+                    usersModified = usersFile.lastModified();
+                    usersLength = usersFile.length();
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.writeInt(MAGIC);
+                        raf.writeLong(usersModified);
+                        raf.writeLong(usersLength);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Returns the size of the index file, so entries added for a change that is not saved can be rolled back.
+     * Must be called under the lock of the users file.
+     *
+     * @return the length of the index file in bytes.
+     */
+    public synchronized long length() {
+        return file.length();
+    }
+
+    /**
+     * Cuts the index file back to an earlier length and forgets the loaded entries,
+     * after the users file could not be saved with the entries added since.
+     *
+     * @param length the length returned by {@link #length()} before the entries were added.
+     * @throws IOException if the index cannot be locked or truncated.
+     */
+    public void rollBack(long length) throws IOException {
+        lock().locked(generation -> {
+            synchronized (this) {
+                loaded = false;
+                if (file.length() > length) {
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.setLength(length);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Forgets the loaded entries, so the next lookup reads the index again and rebuilds it if it is stale.
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+    }
+
+    private synchronized boolean isStale() {
+        return !loaded || usersFile.lastModified() != usersModified || usersFile.length() != usersLength
+                || file.length() != indexLength;
+    }
+
+    private void reloadIfStale() throws IOException {
+        if (isStale()) {
+            load();
+        }
+    }
+
+    private void load() throws IOException {
+        hashes.clear();
+        loaded = false;
+        if (!file.exists() || !readIndex()) {
+            rebuild();
+        }
+        indexLength = file.length();
+        loaded = true;
+    }
+
+    private StoreLock lock() throws IOException {
+        if (lock == null) {
+            lock = StoreLock.forFile(lockFile);
+        }
+        return lock;
+    }
+
+    /**
+     * Reads the index file if it matches the current users file, cutting off a torn last entry.
+     *
+     * @return false if the index is missing, damaged or stale.
+     */
+    private boolean readIndex() throws IOException {
+        long validBytes = HEADER_BYTES;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                return false;
+            }
+            long modified = input.readLong();
+            long length = input.readLong();
+            if (modified != usersFile.lastModified() || length != usersFile.length()) {
+                return false;
+            }
+            usersModified = modified;
+            usersLength = length;
+            try {
+                while (true) {
+                    String name = input.readUTF();
+                    String hash = input.readUTF();
+                    hashes.put(name, hash);
+                    validBytes += 4 + ConversationIndex.utfLength(name) + ConversationIndex.utfLength(hash);
+                }
+            } catch (EOFException e) {
+                // End of the index, or a torn entry that is cut off below.
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(validBytes);
+        }
+        return true;
+    }
+
+    private void rebuild() throws IOException {
+        hashes.clear();
+        usersModified = usersFile.lastModified();
+        usersLength = usersFile.length();
+        StreamingXmlReader.forEachUser(usersFile.getPath(), false, user -> {
+            if (user.getName() != null && user.getPassword() != null) {
+                hashes.put(user.getName(), user.getPassword());
+            }
+            return true;
+        });
+
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(MAGIC);
+            output.writeLong(usersModified);
+            output.writeLong(usersLength);
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeUTF(entry.getValue());
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
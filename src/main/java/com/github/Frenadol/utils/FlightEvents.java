@@ -0,0 +1,224 @@
+package com.github.Frenadol.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JDK Flight Recorder events of the persistence and UI hot paths.
+ * While no recording is running the events cost next to nothing, so they stay in production builds;
+ * a recording shows how long every parse, save, login, send, chat open and avatar decode took, with
+ * the bytes and records behind it.
+ * <p>
+ * The {@code chattot.jfc} profile next to the application resources enables these events together
+ * with a low overhead selection of JDK events. Start the application with
+ * {@code -Dchattot.recording=chattot.jfr} to record a session with it; the file is written on exit.
+ * The profile can also be given to the JVM directly with
+ * {@code -XX:StartFlightRecording=settings=chattot.jfc,filename=chattot.jfr}.
+ */
+public final class FlightEvents {
+
+    private static final Logger logger = Logger.getLogger(FlightEvents.class.getName());
+
+    /** System property naming the file a recording with the application profile is written to. */
+    public static final String RECORDING_PROPERTY = "chattot.recording";
+
+    private static final String PROFILE = "/chattot.jfc";
+
+    private FlightEvents() {}
+
+    /**
+     * A full read of the users XML file.
+     */
+    @Name("chattot.UserFileParse")
+    @Label("User File Parse")
+    @Category({"CHATTOT", "Persistence"})
+    @Description("Parsing of the users XML file")
+    @StackTrace(false)
+    public static class UserFileParse extends Event {
+        @Label("Path")
+        public String path;
+
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytesRead;
+
+        @Label("Users")
+        public int userCount;
+
+        @Label("Read To The End")
+        @Description("False if the reader stopped at the user it was looking for")
+        public boolean complete;
+    }
+
+    /**
+     * A read of message records from the log or from a legacy messages XML file.
+     */
+    @Name("chattot.MessageFileParse")
+    @Label("Message File Parse")
+    @Category({"CHATTOT", "Persistence"})
+    @Description("Reading and decoding of stored messages")
+    @StackTrace(false)
+    public static class MessageFileParse extends Event {
+        @Label("Path")
+        public String path;
+
+        @Label("Operation")
+        @Description("read, catchUp, scan or xml")
+        public String operation;
+
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytesRead;
+
+        @Label("Records")
+        public int recordCount;
+    }
+
+    /**
+     * A write of the users file or of records to the message log.
+     */
+    @Name("chattot.Save")
+    @Label("Save")
+    @Category({"CHATTOT", "Persistence"})
+    @Description("Writing of the users file or of message records")
+    @StackTrace(false)
+    public static class Save extends Event {
+        @Label("Path")
+        public String path;
+
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytesWritten;
+
+        @Label("Records")
+        public int recordCount;
+    }
+
+    /**
+     * The check of a user name and password against the credential index.
+     */
+    @Name("chattot.LoginVerification")
+    @Label("Login Verification")
+    @Category({"CHATTOT", "UI"})
+    @Description("Verification of the credentials entered on the login screen")
+    @StackTrace(false)
+    public static class LoginVerification extends Event {
+        @Label("User Found")
+        public boolean userFound;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    /**
+     * A message sent from the chat screen, from the click until its write is confirmed.
+     */
+    @Name("chattot.MessageSend")
+    @Label("Message Send")
+    @Category({"CHATTOT", "UI"})
+    @Description("Time from sending a message until it is stored")
+    @StackTrace(false)
+    public static class MessageSend extends Event {
+        @Label("Content Length")
+        public int contentLength;
+
+        @Label("Conversation Size")
+        public int conversationSize;
+
+        @Label("Through Server")
+        @Description("False if the message was written to the local log")
+        public boolean viaServer;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    /**
+     * The opening of a conversation, until its newest page is on screen.
+     */
+    @Name("chattot.ChatOpen")
+    @Label("Chat Open")
+    @Category({"CHATTOT", "UI"})
+    @Description("Time from opening a chat until its newest messages are shown")
+    @StackTrace(false)
+    public static class ChatOpen extends Event {
+        @Label("Conversation Size")
+        public int conversationSize;
+
+        @Label("Messages Loaded")
+        public int messagesLoaded;
+    }
+
+    /**
+     * The decoding of a profile picture into a thumbnail.
+     */
+    @Name("chattot.AvatarDecode")
+    @Label("Avatar Decode")
+    @Category({"CHATTOT", "UI"})
+    @Description("Decoding, scaling and clipping of a profile picture")
+    @StackTrace(false)
+    public static class AvatarDecode extends Event {
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytesRead;
+
+        @Label("Size")
+        @Description("Width and height of the thumbnail in pixels")
+        public int size;
+
+        @Label("Decoded")
+        public boolean decoded;
+    }
+
+    /**
+     * Starts a recording with the application profile if {@value #RECORDING_PROPERTY} names a file.
+     * The recording is dumped to that file when the JVM exits.
+     *
+     * @return the recording, or null if none was requested or it could not be started.
+     */
+    public static Recording startRecordingIfRequested() {
+        String destination = System.getProperty(RECORDING_PROPERTY);
+        if (destination == null || destination.isEmpty()) {
+            return null;
+        }
+        try (InputStream input = FlightEvents.class.getResourceAsStream(PROFILE)) {
+            if (input == null) {
+                throw new IOException("Missing " + PROFILE);
+            }
+            Configuration configuration;
+            try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+                configuration = Configuration.create(reader);
+            }
+            Path path = Paths.get(destination);
+            Recording recording = new Recording(configuration);
+            recording.setName("CHATTOT");
+            recording.setToDisk(true);
+            recording.setDumpOnExit(true);
+            recording.setDestination(path);
+            recording.start();
+            logger.log(Level.INFO, "Recording to {0}", path.toAbsolutePath());
+            return recording;
+        } catch (IOException | ParseException | RuntimeException e) {
+            logger.log(Level.WARNING, "Cannot start the flight recording", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind queue for outgoing messages.
+ * Messages submitted within one commit window are written to the {@link MessageLog} in a single append
+ * and optionally synced once. Their futures complete as soon as they are in the log; the batch is then
+ * mirrored to ChatData.txt in a single write, and a mirror that cannot be written is only logged.
+ * A window closes when it holds {@code chattot.commit.batchSize} messages or
+ * {@code chattot.commit.maxLatencyMs} have passed since its first message;
+ * {@code chattot.commit.fsync} enables the sync.
+ */
+public class GroupCommitWriter {
+
+    private static final String TXT_MIRROR_FILE = "ChatData.txt";
+    private static final Logger logger = Logger.getLogger(GroupCommitWriter.class.getName());
+
+    private static final Metrics.Counter mirrorFailures = Metrics.getInstance().counter(
+            "chattot_mirror_failures_total", "Committed batches that could not be written to the text mirror");
+
+    private static final PendingMessage STOP = new PendingMessage(null);
+
+    private static GroupCommitWriter instance;
+
+    private final MessageLog log;
+    private final String mirrorPath;
+    private final long maxLatencyNanos;
+    private final int maxBatchSize;
+    private final boolean fsync;
+    private final BlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private boolean closed;
+
+    /**
+     * Creates a writer and starts its commit thread.
+     *
+     * @param log the log messages are appended to.
+     * @param mirrorPath the text file every message is mirrored to, or null for no mirror.
+     * @param maxLatencyMillis the longest a message waits for its batch to fill up.
+     * @param maxBatchSize the largest number of messages committed together.
+     * @param fsync whether every commit is forced to the storage device.
+     */
+    public GroupCommitWriter(MessageLog log, String mirrorPath, long maxLatencyMillis, int maxBatchSize, boolean fsync) {
+        this.log = log;
+        this.mirrorPath = mirrorPath;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.fsync = fsync;
+        this.committer = new Thread(this::commitLoop, "chattot-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Returns the writer for the shared message log, configured from system properties.
+     *
+     * @return the shared GroupCommitWriter instance.
+     */
+    public static synchronized GroupCommitWriter getInstance() {
+        if (instance == null) {
+            instance = new GroupCommitWriter(MessageLog.getInstance(), TXT_MIRROR_FILE,
+                    Long.getLong("chattot.commit.maxLatencyMs", 5),
+                    Integer.getInteger("chattot.commit.batchSize", 256),
+                    Boolean.getBoolean("chattot.commit.fsync"));
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the shared writer, if it was ever started, committing whatever is still queued.
+     *
+     * @throws InterruptedException if interrupted while waiting for the last commit.
+     */
+    public static void shutdown() throws InterruptedException {
+        GroupCommitWriter writer;
+        synchronized (GroupCommitWriter.class) {
+            writer = instance;
+        }
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    /**
+     * Queues a message for the next commit.
+     *
+     * @param message the message to store.
+     * @return a future completed with the position of the message once its batch is written.
+     */
+    public synchronized CompletableFuture<Long> submit(Message message) {
+        PendingMessage pending = new PendingMessage(message);
+        if (closed) {
+            pending.future.completeExceptionally(new IOException("The message writer is closed"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Commits whatever is still queued and stops the commit thread.
+     *
+     * @throws InterruptedException if interrupted while waiting for the last commit.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                queue.add(STOP);
+            }
+        }
+        committer.join();
+    }
+
+    private void commitLoop() {
+        List<PendingMessage> batch = new ArrayList<>(maxBatchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                PendingMessage first = queue.take();
+                if (first == STOP) {
+                    stopping = true;
+                } else {
+                    batch.add(first);
+                    long deadline = System.nanoTime() + maxLatencyNanos;
+                    while (batch.size() < maxBatchSize) {
+                        PendingMessage next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        if (next == STOP) {
+                            stopping = true;
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingMessage> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            messages.add(pending.message);
+        }
+
+        long[] positions;
+        try {
+            positions = log.appendAll(messages);
+            if (fsync) {
+                log.sync();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Error committing messages", e);
+            for (PendingMessage pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future.complete(positions[i]);
+        }
+
+        if (mirrorPath != null) {
+            try {
+                writeMirror(messages);
+            } catch (IOException | RuntimeException e) {
+                mirrorFailures.increment();
+                logger.log(Level.WARNING, "Cannot write the messages to " + mirrorPath, e);
+            }
+        }
+    }
+
+    /**
+     * Appends the batch to the text mirror in the "[timestamp] sender a receiver: content" format.
+     */
+    private void writeMirror(List<Message> messages) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Message message : messages) {
+            lines.append('[').append(message.getTimestamp()).append("] ")
+                    .append(message.getSender().getName()).append(" a ")
+                    .append(message.getReceiver().getName()).append(": ")
+                    .append(message.getContent()).append('\n');
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(mirrorPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        }
+    }
+
+    private static class PendingMessage {
+        private final Message message;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        private PendingMessage(Message message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Follows the {@link MessageLog} while other instances of the application append to it.
+ * A {@link WatchService} on the log directory wakes the tailer up when a segment changes, and
+ * {@link MessageLog#refresh(ObjLongConsumer)} reads only the bytes after the last known position,
+ * so every update costs as much as the new messages and not as much as the history.
+ * Where the watch service is slow to report changes, the log is also checked every few seconds.
+ */
+public class LogTailer {
+
+    private static final Logger logger = Logger.getLogger(LogTailer.class.getName());
+
+    private static final long CHECK_INTERVAL_SECONDS = 2;
+
+    private static LogTailer instance;
+
+    private final MessageLog log;
+    private final WatchService watcher;
+    private final Thread thread;
+    private volatile ObjLongConsumer<Message> listener;
+    private volatile boolean running = true;
+
+    /**
+     * Starts following a message log.
+     *
+     * @param log the log to follow.
+     * @throws IOException if the log directory cannot be watched.
+     */
+    public LogTailer(MessageLog log) throws IOException {
+        this.log = log;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        Path directory = log.getDirectory().toPath();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::tail, "chattot-tailer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the tailer of the shared message log, starting it the first time.
+     *
+     * @return the shared LogTailer instance.
+     * @throws IOException if the log directory cannot be watched.
+     */
+    public static synchronized LogTailer getInstance() throws IOException {
+        if (instance == null) {
+            instance = new LogTailer(MessageLog.getInstance());
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the shared tailer, if it was ever started.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Sets the listener that receives every message appended by another instance, together with its
+     * position, on the tailer thread.
+     *
+     * @param onMessage the listener, or null to only keep the log and its indexes up to date.
+     */
+    public void setListener(ObjLongConsumer<Message> onMessage) {
+        this.listener = onMessage;
+    }
+
+    /**
+     * Stops following the log.
+     */
+    public void close() {
+        running = false;
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing the log watcher", e);
+        }
+    }
+
+    private void tail() {
+        while (running) {
+            try {
+                WatchKey key = watcher.poll(CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                if (key != null) {
+                    // Every event just means "look again"; which segment changed does not matter.
+                    key.pollEvents();
+                    key.reset();
+                }
+                log.refresh((message, position) -> {
+                    ObjLongConsumer<Message> onMessage = listener;
+                    if (onMessage != null) {
+                        onMessage.accept(message, position);
+                    }
+                });
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Error following the message log", e);
+            }
+        }
+    }
+}
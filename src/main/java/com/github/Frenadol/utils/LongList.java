@@ -0,0 +1,70 @@
+package com.github.Frenadol.utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive longs, used to hold message positions without boxing.
+ */
+public class LongList {
+    private long[] values;
+    private int size;
+
+    public LongList() {
+        this(8);
+    }
+
+    public LongList(int capacity) {
+        this.values = new long[Math.max(capacity, 1)];
+    }
+
+    public void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return values[index];
+    }
+
+    /**
+     * Searches a list whose values are in ascending order.
+     *
+     * @param value the value to find.
+     * @return the index of the value, or a negative number if it is not in the list.
+     */
+    public int binarySearch(long value) {
+        return Arrays.binarySearch(values, 0, size, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns a copy of the values between two indexes.
+     *
+     * @param from the first index, inclusive.
+     * @param to the last index, exclusive.
+     * @return the values in that range.
+     */
+    public long[] toArray(int from, int to) {
+        return Arrays.copyOfRange(values, from, to);
+    }
+
+    public long[] toArray() {
+        return toArray(0, size);
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A structure derived from the {@link MessageLog} that is kept up to date on every append.
+ * When an index is attached to the log, every record after {@link #getLastPosition()} is replayed into it,
+ * so an index that fell behind (or was deleted) catches up by itself.
+ */
+public interface MessageIndex {
+
+    /**
+     * Returns the position of the last record this index has seen.
+     *
+     * @return the last indexed position, or -1 if nothing has been indexed yet.
+     */
+    long getLastPosition();
+
+    /**
+     * Adds a newly stored message to the index.
+     *
+     * @param message the stored message.
+     * @param position the position of the message in the log.
+     * @throws IOException if the index cannot be persisted.
+     */
+    void index(Message message, long position) throws IOException;
+
+    /**
+     * Adds a batch of newly stored messages to the index.
+     * Indexes that persist their entries should override this to write the batch at once.
+     *
+     * @param messages the stored messages.
+     * @param positions the positions of the messages, in the same order.
+     * @throws IOException if the index cannot be persisted.
+     */
+    default void indexAll(List<Message> messages, long[] positions) throws IOException {
+        for (int i = 0; i < messages.size(); i++) {
+            index(messages.get(i), positions[i]);
+        }
+    }
+}
@@ -0,0 +1,1180 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.CompactMessage;
+import com.github.Frenadol.model.ConversationSummary;
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented storage for chat messages.
+ * Every message is stored as a length-prefixed binary record, so sending a message
+ * is a single append instead of a rewrite of the whole history.
+ * Records are addressed by their position, a byte offset that is global across segments:
+ * each segment file is named after the position of its first record.
+ * <p>
+ * A segment is sealed once it reaches its size limit or spans more time than its time limit.
+ * Only the newest sealed segments stay in the hot tier; older ones are compressed into the cold tier
+ * (the {@code cold} subdirectory) by a background thread, where they stay readable at the same positions.
+ * Cold segments whose newest message is older than the retention period are deleted, and the positions
+ * they held are skipped when read.
+ * <p>
+ * Several instances of the application may share the log. Appends, crash recovery and index writes
+ * happen under the {@link StoreLock} of the directory, and an instance that finds the generation of the
+ * lock moved on first reads what the others appended, so records are never written over each other.
+ * Compaction also replaces and deletes segment files under the lock and moves to the next generation,
+ * and readers look for moved or deleted segments whenever the generation changed since they last did.
+ */
+public class MessageLog {
+
+    private static final String DEFAULT_DIRECTORY = "ChatLog";
+    private static final String LEGACY_XML_FILE = "ChatData.xml";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COLD_DIRECTORY = "cold";
+    private static final String CONVERSATION_INDEX_FILE = "conversations.idx";
+    private static final String SEARCH_INDEX_FILE = "search.idx";
+    private static final String SUMMARIES_FILE = "summaries.idx";
+    private static final String LOCK_FILE = "append.lock";
+    private static final long DEFAULT_SEGMENT_BYTES = 8L * 1024 * 1024;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final long NO_RECORD = Long.MIN_VALUE;
+    private static final int MAX_UNSEEN = 4096;
+
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+    private static MessageLog instance;
+
+    private final File directory;
+    private final File coldDirectory;
+    private final long maxSegmentBytes;
+    private final long maxSegmentMicros;
+    private final int hotSegments;
+    private final long retentionMicros;
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private final TreeMap<Long, ColdSegment> coldSegments = new TreeMap<>();
+    private final ExecutorService compactor;
+    private final StoreLock appendLock;
+    private final List<MessageIndex> indexes = new ArrayList<>();
+    private final UserTable users = new UserTable();
+    private ConversationIndex conversationIndex;
+    private SearchIndex searchIndex;
+    private ConversationSummaries conversationSummaries;
+    private FileChannel activeChannel;
+    private long activeBase;
+    private long activeFirstMicros = NO_RECORD;
+    private long endPosition;
+    private long seenGeneration = -1;
+    private long segmentGeneration = -1;
+    private final List<Message> unseen = new ArrayList<>();
+    private final LongList unseenPositions = new LongList();
+
+    /**
+     * Opens (or creates) a message log in the given directory that only rolls segments over by size
+     * and keeps every segment in the hot tier.
+     *
+     * @param directory the directory holding the segment files.
+     * @param maxSegmentBytes the size after which a new segment is started.
+     * @throws IOException if the directory or the segments cannot be read.
+     */
+    public MessageLog(String directory, long maxSegmentBytes) throws IOException {
+        this(directory, maxSegmentBytes, Long.MAX_VALUE, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Opens (or creates) a message log in the given directory.
+     * A partially written record at the end of the newest segment is discarded.
+     *
+     * @param directory the directory holding the segment files.
+     * @param maxSegmentBytes the size after which a new segment is started.
+     * @param maxSegmentMillis the time span of messages after which a new segment is started.
+     * @param hotSegments the number of sealed segments kept uncompressed; older ones move to the cold tier.
+     * @param retentionMillis how long cold segments are kept after their newest message, or 0 to keep them forever.
+     * @throws IOException if the directory or the segments cannot be read.
+     */
+    public MessageLog(String directory, long maxSegmentBytes, long maxSegmentMillis, int hotSegments,
+                      long retentionMillis) throws IOException {
+        this.directory = new File(directory);
+        this.coldDirectory = new File(this.directory, COLD_DIRECTORY);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMicros = maxSegmentMillis >= Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : maxSegmentMillis * 1000;
+        this.hotSegments = Math.max(0, hotSegments);
+        this.retentionMicros = retentionMillis * 1000;
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create message log directory " + directory);
+        }
+        this.appendLock = StoreLock.forFile(new File(this.directory, LOCK_FILE));
+        appendLock.locked(generation -> {
+            openSegments();
+            seenGeneration = generation;
+            return null;
+        });
+
+        if (this.hotSegments == Integer.MAX_VALUE && retentionMillis <= 0) {
+            compactor = null;
+        } else {
+            compactor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "chattot-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Finds the cold and hot segments and recovers the active one, cutting off a record torn by a crash.
+     * Runs under the lock, so a record another instance is still writing is not mistaken for a torn one.
+     */
+    private void openSegments() throws IOException {
+        File[] coldFiles = coldDirectory.listFiles((dir, name) -> name.endsWith(ColdSegment.SUFFIX));
+        if (coldFiles != null) {
+            for (File file : coldFiles) {
+                coldSegments.put(baseOf(file.getName(), ColdSegment.SUFFIX), new ColdSegment(file));
+            }
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                long base = baseOf(file.getName(), SEGMENT_SUFFIX);
+                if (coldSegments.containsKey(base)) {
+                    // Compressed before a crash, but not deleted yet.
+                    Files.delete(file.toPath());
+                } else {
+                    segments.put(base, file);
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            Map.Entry<Long, ColdSegment> lastCold = coldSegments.lastEntry();
+            openSegment(lastCold == null ? 0 : lastCold.getKey() + lastCold.getValue().length());
+        } else {
+            Map.Entry<Long, File> last = segments.lastEntry();
+            activeBase = last.getKey();
+            activeChannel = FileChannel.open(last.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validBytes = recoverSegment(activeChannel);
+            activeChannel.truncate(validBytes);
+            activeChannel.position(validBytes);
+            activeFirstMicros = readFirstMicros(activeChannel);
+            endPosition = activeBase + validBytes;
+        }
+    }
+
+    /**
+     * Returns the shared message log stored in the working directory.
+     * Segments roll over at {@code chattot.log.segmentBytes} or {@code chattot.log.segmentHours},
+     * {@code chattot.log.hotSegments} sealed segments stay uncompressed, and cold segments are kept
+     * for {@code chattot.log.retentionDays}, forever by default.
+     * The first time the log is opened empty, the messages of the legacy ChatData.xml are imported.
+     * The conversation and search indexes and the conversation summaries are attached before the log is handed out.
+     *
+     * @return the shared MessageLog instance.
+     */
+    public static synchronized MessageLog getInstance() {
+        return getInstance(true);
+    }
+
+    /**
+     * Returns the shared message log like {@link #getInstance()}, but does not import ChatData.xml
+     * into an empty log, for tools that import message histories themselves.
+     *
+     * @return the shared MessageLog instance.
+     */
+    public static synchronized MessageLog getInstanceWithoutLegacyImport() {
+        return getInstance(false);
+    }
+
+    private static MessageLog getInstance(boolean importLegacy) {
+        if (instance == null) {
+            try {
+                MessageLog log = new MessageLog(DEFAULT_DIRECTORY,
+                        Long.getLong("chattot.log.segmentBytes", DEFAULT_SEGMENT_BYTES),
+                        TimeUnit.HOURS.toMillis(Long.getLong("chattot.log.segmentHours", 24)),
+                        Integer.getInteger("chattot.log.hotSegments", 2),
+                        TimeUnit.DAYS.toMillis(Long.getLong("chattot.log.retentionDays", 0)));
+                // The legacy import and the shared index files are handled under the lock, after reading what
+                // other instances appended since the log was opened: two instances starting on an empty log
+                // must not both import ChatData.xml, and a torn index tail must not be confused with an entry
+                // another instance is writing. The monitor of the log is taken first, as everywhere else.
+                synchronized (log) {
+                    log.appendLock.locked(generation -> {
+                        log.catchUpUnseen(generation);
+                        log.seenGeneration = generation;
+                        if (importLegacy && log.isEmpty() && new File(LEGACY_XML_FILE).exists()) {
+                            log.importFromXML(LEGACY_XML_FILE);
+                        }
+                        log.setConversationIndex(new ConversationIndex(new File(DEFAULT_DIRECTORY, CONVERSATION_INDEX_FILE)));
+                        log.setSearchIndex(new SearchIndex(new File(DEFAULT_DIRECTORY, SEARCH_INDEX_FILE)));
+                        log.setConversationSummaries(new ConversationSummaries(new File(DEFAULT_DIRECTORY, SUMMARIES_FILE)));
+                        return null;
+                    });
+                }
+                instance = log;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open the message log", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Attaches an index to the log. Records the index has not seen yet are replayed into it first,
+     * and from then on it receives every appended message.
+     *
+     * @param index the index to keep up to date.
+     * @throws IOException if the log cannot be read or the index cannot be written.
+     */
+    public synchronized void addIndex(MessageIndex index) throws IOException {
+        try {
+            forEach(index.getLastPosition() + 1, (message, position) -> {
+                try {
+                    index.index(message, position);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        indexes.add(index);
+    }
+
+    /**
+     * Appends a message to the end of the log and to every attached index.
+     *
+     * @param message the message to store.
+     * @return the position of the stored record.
+     * @throws IOException if the record cannot be written.
+     */
+    public long append(Message message) throws IOException {
+        return appendAll(Collections.singletonList(message))[0];
+    }
+
+    /**
+     * Appends several messages with as few writes as possible: all the records that fit
+     * in the active segment are written together, then the indexes are updated.
+     * Sealing a segment on the way schedules a compaction.
+     * If another instance appended since this one last looked, its records are read first.
+     *
+     * @param messages the messages to store, in order.
+     * @return the positions of the stored records, in the same order.
+     * @throws IOException if the records cannot be written.
+     */
+    public synchronized long[] appendAll(List<Message> messages) throws IOException {
+        return appendLock.update(generation -> {
+            catchUpUnseen(generation);
+            long[] written = appendRecords(messages);
+            seenGeneration = generation + 1;
+            return written;
+        });
+    }
+
+    /**
+     * Marks every message a user received from a contact so far as read in the conversation summaries.
+     * The watermark is written under the lock, after the records other instances appended to the log and
+     * to the summaries, and moves the lock to the next generation so the others read it on their next refresh.
+     *
+     * @param user the name of the user who read the conversation.
+     * @param contact the name of the other participant.
+     * @throws IOException if the watermark cannot be written.
+     */
+    public synchronized void markRead(String user, String contact) throws IOException {
+        ConversationSummaries summaries = getConversationSummaries();
+        ConversationSummary summary = summaries.getSummary(user, contact);
+        if (appendLock.getGeneration() == seenGeneration && (summary == null || summary.getUnreadCount() == 0)) {
+            return;
+        }
+        appendLock.update(generation -> {
+            catchUpUnseen(generation);
+            summaries.markRead(user, contact);
+            seenGeneration = generation + 1;
+            return null;
+        });
+    }
+
+    /**
+     * Reads what other instances appended if the generation moved on since this log last looked.
+     * The messages are kept for the next refresh, so its visitor still hears about them.
+     */
+    private void catchUpUnseen(long generation) throws IOException {
+        if (generation != seenGeneration) {
+            catchUp(unseen, unseenPositions);
+            if (unseen.size() > MAX_UNSEEN) {
+                logger.fine("Dropping " + unseen.size() + " messages of other instances that nobody refreshed");
+                unseen.clear();
+                unseenPositions.clear();
+            }
+        }
+    }
+
+    private long[] appendRecords(List<Message> messages) throws IOException {
+        FlightEvents.Save event = new FlightEvents.Save();
+        event.begin();
+        long startPosition = endPosition;
+        long[] positions = new long[messages.size()];
+        List<ByteBuffer> pending = new ArrayList<>();
+        long pendingBytes = 0;
+        boolean rolledOver = false;
+
+        for (int i = 0; i < messages.size(); i++) {
+            ByteBuffer record = encode(messages.get(i));
+            long micros = epochMicrosOf(messages.get(i));
+            long segmentBytes = endPosition - activeBase + pendingBytes;
+            boolean full = segmentBytes + record.remaining() > maxSegmentBytes;
+            boolean expired = micros - activeFirstMicros > maxSegmentMicros;
+            if (segmentBytes > 0 && (full || expired)) {
+                write(pending);
+                pending.clear();
+                pendingBytes = 0;
+                activeChannel.close();
+                openSegment(endPosition);
+                rolledOver = true;
+            }
+            if (endPosition == activeBase && pendingBytes == 0) {
+                activeFirstMicros = micros;
+            }
+            positions[i] = endPosition + pendingBytes;
+            pendingBytes += record.remaining();
+            pending.add(record);
+        }
+        write(pending);
+        if (rolledOver) {
+            scheduleCompaction();
+        }
+
+        for (MessageIndex index : indexes) {
+            index.indexAll(messages, positions);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = directory.getPath();
+            event.bytesWritten = endPosition - startPosition;
+            event.recordCount = messages.size();
+            event.commit();
+        }
+        return positions;
+    }
+
+    /**
+     * Reads the records other instances appended since this log last looked, including new segments,
+     * and adds them to the attached indexes. Segments another instance moved to the cold tier are picked up too.
+     * Only the bytes after the last known position are read, and when the generation of the lock shows
+     * that nobody appended, nothing is read at all. Records this instance read while appending are
+     * handed to the visitor here as well.
+     *
+     * @param visitor receives each new message together with its position.
+     * @return the number of new messages.
+     * @throws IOException if a segment cannot be read.
+     */
+    public synchronized int refresh(ObjLongConsumer<Message> visitor) throws IOException {
+        List<Message> messages = new ArrayList<>(unseen);
+        LongList positions = new LongList();
+        for (int i = 0; i < unseenPositions.size(); i++) {
+            positions.add(unseenPositions.get(i));
+        }
+        unseen.clear();
+        unseenPositions.clear();
+        if (appendLock.getGeneration() == seenGeneration) {
+            // Nothing was appended, but another instance may have compacted segments.
+            findNewSegments();
+        } else {
+            appendLock.locked(generation -> {
+                catchUp(messages, positions);
+                seenGeneration = generation;
+                return null;
+            });
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            visitor.accept(messages.get(i), positions.get(i));
+        }
+        return messages.size();
+    }
+
+    /**
+     * Reads the records appended after the last known position, following new segments, and indexes them.
+     * Runs under the lock, so the shared index files receive positions in log order.
+     */
+    private void catchUp(List<Message> messages, LongList positions) throws IOException {
+        FlightEvents.MessageFileParse event = new FlightEvents.MessageFileParse();
+        event.begin();
+        findNewSegments();
+        int first = messages.size();
+        while (true) {
+            long known = endPosition - activeBase;
+            long size = activeChannel.size();
+            if (size > known) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) (size - known));
+                readFully(activeChannel, buffer, known);
+                event.bytesRead += buffer.capacity();
+                buffer.flip();
+                while (buffer.remaining() >= HEADER_BYTES) {
+                    int start = buffer.position();
+                    int length = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        buffer.position(start);
+                        break;
+                    }
+                    ByteBuffer payload = buffer.slice();
+                    payload.limit(length);
+                    if (checksum(payload) != checksum) {
+                        buffer.position(start);
+                        break;
+                    }
+                    buffer.position(buffer.position() + length);
+                    messages.add(decode(payload));
+                    positions.add(endPosition);
+                    endPosition += HEADER_BYTES + length;
+                }
+            }
+
+            Long next = segments.higherKey(activeBase);
+            if (next == null) {
+                break;
+            }
+            activeChannel.close();
+            activeChannel = FileChannel.open(segments.get(next).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            activeBase = next;
+            endPosition = next;
+        }
+        activeChannel.position(endPosition - activeBase);
+        activeFirstMicros = readFirstMicros(activeChannel);
+
+        if (messages.size() > first) {
+            List<Message> added = messages.subList(first, messages.size());
+            long[] newPositions = positions.toArray(first, positions.size());
+            for (MessageIndex index : indexes) {
+                index.indexAll(added, newPositions);
+            }
+        }
+        if (conversationSummaries != null) {
+            // Read watermarks of other instances are only in the summaries file.
+            conversationSummaries.catchUp();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = directory.getPath();
+            event.operation = "catchUp";
+            event.recordCount = messages.size() - first;
+            event.commit();
+        }
+    }
+
+    /**
+     * Looks for segments other instances created, compacted or deleted, if the generation of the lock
+     * changed since this log last looked.
+     */
+    private void rescanIfChanged() throws IOException {
+        long generation = appendLock.getGeneration();
+        if (generation != segmentGeneration) {
+            findNewSegments();
+            segmentGeneration = generation;
+        }
+    }
+
+    /**
+     * Picks up the segments other instances created or moved to the cold tier since this log last looked,
+     * and forgets the cold segments they deleted.
+     */
+    private void findNewSegments() throws IOException {
+        coldSegments.values().removeIf(segment -> !segment.getFile().exists());
+        File[] coldFiles = coldDirectory.listFiles((dir, name) -> name.endsWith(ColdSegment.SUFFIX));
+        if (coldFiles != null) {
+            for (File file : coldFiles) {
+                long base = baseOf(file.getName(), ColdSegment.SUFFIX);
+                if (!coldSegments.containsKey(base) && base < activeBase) {
+                    coldSegments.put(base, new ColdSegment(file));
+                    segments.remove(base);
+                }
+            }
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                long base = baseOf(file.getName(), SEGMENT_SUFFIX);
+                if (base > activeBase) {
+                    segments.put(base, file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces every appended record of the active segment to the storage device.
+     *
+     * @throws IOException if the segment cannot be synced.
+     */
+    public synchronized void sync() throws IOException {
+        activeChannel.force(false);
+    }
+
+    private void write(List<ByteBuffer> records) throws IOException {
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= activeChannel.write(buffers);
+        }
+        endPosition = activeChannel.position() + activeBase;
+    }
+
+    /**
+     * Reads the message stored at the given position.
+     *
+     * @param position the position returned by {@link #append(Message)}.
+     * @return the stored message.
+     * @throws IOException if the record cannot be read or is corrupted.
+     */
+    public Message read(long position) throws IOException {
+        return read(new long[]{position}).get(0);
+    }
+
+    /**
+     * Reads the messages stored at the given positions, keeping each segment open while consecutive
+     * positions fall inside it. Positions in the cold tier are read from their compressed segment,
+     * and positions whose segment was deleted by the retention policy are skipped.
+     *
+     * @param positions the positions to read, in ascending order.
+     * @return the messages, in the same order as the positions.
+     * @throws IOException if a record cannot be read or is corrupted.
+     */
+    public synchronized List<Message> read(long[] positions) throws IOException {
+        rescanIfChanged();
+        try {
+            return readPositions(positions);
+        } catch (NoSuchFileException e) {
+            // Another instance compacted a segment after the generation was checked.
+            findNewSegments();
+            return readPositions(positions);
+        }
+    }
+
+    private List<Message> readPositions(long[] positions) throws IOException {
+        FlightEvents.MessageFileParse event = new FlightEvents.MessageFileParse();
+        event.begin();
+        List<Message> messages = new ArrayList<>(positions.length);
+        FileChannel channel = null;
+        long base = -1;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            for (long position : positions) {
+                if (position >= endPosition) {
+                    throw new IOException("No message at position " + position);
+                }
+                Map.Entry<Long, File> segment = segments.floorEntry(position);
+                if (segment == null) {
+                    Message message = readCold(position);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                    continue;
+                }
+                if (segment.getKey() != base) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    channel = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ);
+                    base = segment.getKey();
+                }
+                header.clear();
+                readFully(channel, header, position - base);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    throw new IOException("Corrupted record at position " + position);
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, position - base + HEADER_BYTES);
+                payload.flip();
+                if (checksum(payload) != checksum) {
+                    throw new IOException("Corrupted record at position " + position);
+                }
+                messages.add(decode(payload));
+                event.bytesRead += HEADER_BYTES + length;
+            }
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = directory.getPath();
+            event.operation = "read";
+            event.recordCount = messages.size();
+            event.commit();
+        }
+        return messages;
+    }
+
+    /**
+     * Reads one record from the cold tier.
+     *
+     * @return the message, or null if its segment was deleted by the retention policy.
+     */
+    private Message readCold(long position) throws IOException {
+        Map.Entry<Long, ColdSegment> segment = coldSegments.floorEntry(position);
+        if (segment == null) {
+            return null;
+        }
+        long offset = position - segment.getKey();
+        ByteBuffer header = segment.getValue().read(offset, HEADER_BYTES);
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length < 0 || length > MAX_RECORD_BYTES) {
+            throw new IOException("Corrupted record at position " + position);
+        }
+        ByteBuffer payload = segment.getValue().read(offset + HEADER_BYTES, length);
+        if (checksum(payload) != checksum) {
+            throw new IOException("Corrupted record at position " + position);
+        }
+        return decode(payload);
+    }
+
+    /**
+     * Reads the conversation between two users through the conversation index,
+     * without scanning the messages of any other conversation.
+     *
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @return the messages of the conversation, oldest first.
+     * @throws IOException if a record cannot be read.
+     */
+    public List<Message> readConversation(String userA, String userB) throws IOException {
+        return read(getConversationIndex().getPositions(userA, userB));
+    }
+
+    /**
+     * Reads a slice of the conversation between two users, so long histories can be paged.
+     *
+     * @param userA the name of one participant.
+     * @param userB the name of the other participant.
+     * @param from the index of the first message in the conversation, inclusive.
+     * @param to the index of the last message in the conversation, exclusive.
+     * @return the messages of the slice, oldest first.
+     * @throws IOException if a record cannot be read.
+     */
+    public List<Message> readConversation(String userA, String userB, int from, int to) throws IOException {
+        return read(getConversationIndex().getPositions(userA, userB, from, to));
+    }
+
+    /**
+     * Returns the conversation index attached by {@link #getInstance()}.
+     *
+     * @return the conversation index.
+     * @throws IllegalStateException if this log has no conversation index.
+     */
+    public synchronized ConversationIndex getConversationIndex() {
+        if (conversationIndex == null) {
+            throw new IllegalStateException("The message log has no conversation index");
+        }
+        return conversationIndex;
+    }
+
+    /**
+     * Attaches a conversation index to a log opened through the constructor.
+     *
+     * @param index the conversation index.
+     * @throws IOException if the index cannot be brought up to date.
+     */
+    public synchronized void setConversationIndex(ConversationIndex index) throws IOException {
+        addIndex(index);
+        conversationIndex = index;
+    }
+
+    /**
+     * Finds the messages that contain every word of a query, through the search index.
+     *
+     * @param query the words to look for.
+     * @param userA the name of one participant of the conversation to search, or null to search every conversation.
+     * @param userB the name of the other participant, or null to search every conversation.
+     * @param from the earliest timestamp of a match, inclusive, or null for no lower bound.
+     * @param to the latest timestamp of a match, exclusive, or null for no upper bound.
+     * @param limit the largest number of matches to return; the newest ones are kept.
+     * @return the matching messages, oldest first.
+     * @throws IOException if a record cannot be read.
+     */
+    public List<Message> search(String query, String userA, String userB, LocalDateTime from, LocalDateTime to, int limit) throws IOException {
+        long[] within = userA != null && userB != null ? getConversationIndex().getPositions(userA, userB) : null;
+        return read(getSearchIndex().search(query, within, from, to, limit));
+    }
+
+    /**
+     * Returns the search index attached by {@link #getInstance()}.
+     *
+     * @return the search index.
+     * @throws IllegalStateException if this log has no search index.
+     */
+    public synchronized SearchIndex getSearchIndex() {
+        if (searchIndex == null) {
+            throw new IllegalStateException("The message log has no search index");
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Attaches a search index to a log opened through the constructor.
+     *
+     * @param index the search index.
+     * @throws IOException if the index cannot be brought up to date.
+     */
+    public synchronized void setSearchIndex(SearchIndex index) throws IOException {
+        addIndex(index);
+        searchIndex = index;
+    }
+
+    /**
+     * Returns the conversation summaries attached by {@link #getInstance()}.
+     *
+     * @return the conversation summaries.
+     * @throws IllegalStateException if this log has no conversation summaries.
+     */
+    public synchronized ConversationSummaries getConversationSummaries() {
+        if (conversationSummaries == null) {
+            throw new IllegalStateException("The message log has no conversation summaries");
+        }
+        return conversationSummaries;
+    }
+
+    /**
+     * Attaches conversation summaries to a log opened through the constructor.
+     *
+     * @param summaries the conversation summaries.
+     * @throws IOException if the summaries cannot be brought up to date.
+     */
+    public synchronized void setConversationSummaries(ConversationSummaries summaries) throws IOException {
+        addIndex(summaries);
+        conversationSummaries = summaries;
+    }
+
+    /**
+     * Visits, in order, every message stored from the given position onwards.
+     * The segments are read under the lock, so no instance compacts them meanwhile.
+     *
+     * @param fromPosition the position of the first record to visit.
+     * @param visitor receives each message together with its position.
+     * @throws IOException if a segment cannot be read.
+     */
+    public synchronized void forEach(long fromPosition, ObjLongConsumer<Message> visitor) throws IOException {
+        appendLock.locked(generation -> {
+            findNewSegments();
+            segmentGeneration = generation;
+            scanAll(fromPosition, visitor);
+            return null;
+        });
+    }
+
+    private void scanAll(long fromPosition, ObjLongConsumer<Message> visitor) throws IOException {
+        FlightEvents.MessageFileParse event = new FlightEvents.MessageFileParse();
+        event.begin();
+        ObjLongConsumer<Message> counted = (message, position) -> {
+            event.recordCount++;
+            visitor.accept(message, position);
+        };
+        for (Map.Entry<Long, ColdSegment> segment : coldSegments.entrySet()) {
+            if (segment.getKey() + segment.getValue().length() > fromPosition) {
+                ByteBuffer buffer = segment.getValue().readAll();
+                event.bytesRead += buffer.remaining();
+                scan(buffer, segment.getKey(), fromPosition, counted);
+            }
+        }
+
+        Long first = segments.floorKey(fromPosition);
+        if (first == null) {
+            first = segments.firstKey();
+        }
+        for (Map.Entry<Long, File> segment : segments.tailMap(first, true).entrySet()) {
+            long base = segment.getKey();
+            long limit = Math.min(endPosition - base, segment.getValue().length());
+            try (FileChannel channel = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, limit));
+                readFully(channel, buffer, 0);
+                buffer.flip();
+                event.bytesRead += buffer.remaining();
+                scan(buffer, base, fromPosition, counted);
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = directory.getPath();
+            event.operation = "scan";
+            event.commit();
+        }
+    }
+
+    private void scan(ByteBuffer buffer, long base, long fromPosition, ObjLongConsumer<Message> visitor) {
+        while (buffer.remaining() >= HEADER_BYTES) {
+            long position = base + buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            buffer.position(buffer.position() + length);
+            if (position >= fromPosition && checksum(payload) == checksum) {
+                visitor.accept(decode(payload), position);
+            }
+        }
+    }
+
+    /**
+     * Moves the sealed segments beyond the newest {@code hotSegments} into the cold tier,
+     * then deletes the cold segments that are past the retention period.
+     * The compression runs without holding the log, so appends and reads go on meanwhile; only swapping
+     * and deleting the files happens under the lock, which then moves to the next generation so other
+     * instances look for the segments again before reading.
+     *
+     * @throws IOException if a segment cannot be compressed or deleted.
+     */
+    public void compact() throws IOException {
+        List<Map.Entry<Long, File>> sealed;
+        synchronized (this) {
+            sealed = new ArrayList<>(segments.headMap(activeBase, false).entrySet());
+        }
+
+        for (int i = 0; i < sealed.size() - hotSegments; i++) {
+            long base = sealed.get(i).getKey();
+            File hot = sealed.get(i).getValue();
+            if (!coldDirectory.isDirectory() && !coldDirectory.mkdirs()) {
+                throw new IOException("Cannot create cold tier directory " + coldDirectory);
+            }
+            File cold = new File(coldDirectory, String.format("%020d%s", base, ColdSegment.SUFFIX));
+            try {
+                ColdSegment.write(hot, cold, lastMicros(hot));
+            } catch (NoSuchFileException e) {
+                // Another instance compacted this segment first.
+                continue;
+            }
+            ColdSegment segment = new ColdSegment(cold);
+            swapSegments(() -> {
+                coldSegments.put(base, segment);
+                segments.remove(base);
+                Files.deleteIfExists(hot.toPath());
+            });
+        }
+
+        if (retentionMicros > 0) {
+            long cutoff = toEpochMicros(LocalDateTime.now()) - retentionMicros;
+            swapSegments(() -> {
+                while (!coldSegments.isEmpty() && coldSegments.firstEntry().getValue().getLastMicros() < cutoff) {
+                    Files.deleteIfExists(coldSegments.pollFirstEntry().getValue().getFile().toPath());
+                }
+            });
+        }
+    }
+
+    /**
+     * A change to the segment files made by the compaction.
+     */
+    private interface SegmentChange {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs a change to the segment files while holding both the log and its lock, and moves to the next generation.
+     * The log is taken first, in the same order as appends, and if this log had seen every earlier generation
+     * it counts as having seen this one too, so its own compaction does not make it read the segments again.
+     */
+    private synchronized void swapSegments(SegmentChange change) throws IOException {
+        appendLock.update(generation -> {
+            change.run();
+            if (seenGeneration == generation) {
+                seenGeneration = generation + 1;
+            }
+            if (segmentGeneration == generation) {
+                segmentGeneration = generation + 1;
+            }
+            return null;
+        });
+    }
+
+    private void scheduleCompaction() {
+        if (compactor == null) {
+            return;
+        }
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Error compacting the message log", e);
+            }
+        });
+    }
+
+    /**
+     * Reads every message in the log, oldest first.
+     * This is the replacement for {@link XmlReader#getMessagesFromXML(String)}.
+     *
+     * @return a list with all the stored messages.
+     * @throws IOException if a segment cannot be read.
+     */
+    public List<Message> readAll() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        forEach(0, (message, position) -> messages.add(message));
+        return messages;
+    }
+
+    /**
+     * Imports every message of a legacy ChatData.xml file into the log.
+     *
+     * @param xmlPath the path to the legacy XML file.
+     * @return the number of imported messages.
+     * @throws IOException if the XML file cannot be parsed or the log cannot be written.
+     */
+    public int importFromXML(String xmlPath) throws IOException {
+        BulkImporter importer = new BulkImporter(this, Collections.emptyList(), ForkJoinPool.commonPool());
+        return (int) importer.importXml(new File(xmlPath)).getImported();
+    }
+
+    /**
+     * Returns the directory holding the segment files.
+     *
+     * @return the log directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns whether the log holds no message at all.
+     *
+     * @return true if nothing was ever appended.
+     */
+    public synchronized boolean isEmpty() {
+        return endPosition == 0;
+    }
+
+    /**
+     * Returns the position at which the next message will be appended.
+     *
+     * @return the end position of the log.
+     */
+    public synchronized long getEndPosition() {
+        return endPosition;
+    }
+
+    /**
+     * Waits for a running compaction, then closes the active segment and the attached indexes.
+     *
+     * @throws IOException if the segment cannot be closed.
+     */
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeFiles();
+    }
+
+    private synchronized void closeFiles() throws IOException {
+        activeChannel.close();
+        if (conversationIndex != null) {
+            conversationIndex.close();
+        }
+        if (searchIndex != null) {
+            searchIndex.close();
+        }
+        if (conversationSummaries != null) {
+            conversationSummaries.close();
+        }
+    }
+
+    private void openSegment(long base) throws IOException {
+        File file = new File(directory, String.format("%020d%s", base, SEGMENT_SUFFIX));
+        activeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeChannel.position(activeChannel.size());
+        activeBase = base;
+        activeFirstMicros = readFirstMicros(activeChannel);
+        endPosition = base + activeChannel.size();
+        segments.put(base, file);
+    }
+
+    private static long baseOf(String fileName, String suffix) {
+        return Long.parseLong(fileName.substring(0, fileName.length() - suffix.length()));
+    }
+
+    /**
+     * Returns the timestamp of the first record of a segment, or NO_RECORD if it is empty.
+     */
+    private static long readFirstMicros(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_BYTES + Long.BYTES) {
+            return NO_RECORD;
+        }
+        ByteBuffer micros = ByteBuffer.allocate(Long.BYTES);
+        readFully(channel, micros, HEADER_BYTES);
+        return micros.getLong(0);
+    }
+
+    /**
+     * Returns the timestamp of the newest record of a sealed segment.
+     */
+    private static long lastMicros(File segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+        long newest = NO_RECORD;
+        while (buffer.remaining() >= HEADER_BYTES + Long.BYTES) {
+            int length = buffer.getInt();
+            buffer.getInt();
+            if (length < Long.BYTES || length > buffer.remaining()) {
+                break;
+            }
+            newest = Math.max(newest, buffer.getLong(buffer.position()));
+            buffer.position(buffer.position() + length);
+        }
+        return newest;
+    }
+
+    /**
+     * Scans a segment and returns the length of its valid prefix,
+     * so that a record torn by a crash can be cut off.
+     */
+    private static long recoverSegment(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        readFully(channel, buffer, 0);
+        buffer.flip();
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return start;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            if (checksum(payload) != checksum) {
+                return start;
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return buffer.position();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer encode(Message message) {
+        byte[] sender = message.getSender().getName().getBytes(StandardCharsets.UTF_8);
+        byte[] receiver = message.getReceiver().getName().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        int length = Long.BYTES + 3 * Integer.BYTES + sender.length + receiver.length + content.length;
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(length);
+        record.putInt(0);
+        record.putLong(epochMicrosOf(message));
+        record.putInt(sender.length).put(sender);
+        record.putInt(receiver.length).put(receiver);
+        record.putInt(content.length).put(content);
+
+        ByteBuffer payload = record.duplicate();
+        payload.position(HEADER_BYTES);
+        payload.limit(record.position());
+        record.putInt(Integer.BYTES, checksum(payload));
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Decodes a record into a {@link CompactMessage}: the names are interned in the user table of the log
+     * and the content is kept as the bytes of the record.
+     */
+    private Message decode(ByteBuffer payload) {
+        long micros = payload.getLong();
+        int sender = users.idOf(getString(payload));
+        int receiver = users.idOf(getString(payload));
+        return new CompactMessage(users, sender, receiver, micros, getBytes(payload));
+    }
+
+    private static String getString(ByteBuffer payload) {
+        return new String(getBytes(payload), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the timestamp of a message in epoch microseconds, without building a LocalDateTime
+     * for messages read from the log.
+     *
+     * @param message the message.
+     * @return the timestamp in microseconds since the epoch in UTC.
+     */
+    static long epochMicrosOf(Message message) {
+        if (message instanceof CompactMessage) {
+            return ((CompactMessage) message).getEpochMicros();
+        }
+        return toEpochMicros(message.getTimestamp());
+    }
+
+    /**
+     * Converts a timestamp to the microseconds since the epoch, in UTC, that records store.
+     *
+     * @param timestamp the timestamp.
+     * @return the timestamp in microseconds; anything finer is dropped.
+     */
+    public static long toEpochMicros(LocalDateTime timestamp) {
+        return timestamp.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + timestamp.getNano() / 1_000;
+    }
+
+    /**
+     * Converts microseconds since the epoch, in UTC, back to a timestamp.
+     *
+     * @param micros the timestamp in microseconds.
+     * @return the timestamp.
+     */
+    public static LocalDateTime fromEpochMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                (int) Math.floorMod(micros, 1_000_000L) * 1_000, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,324 @@
+package com.github.Frenadol.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the counters, gauges and latency histograms of this instance.
+ * Counters and histogram buckets are {@link LongAdder}s, which spread concurrent updates over
+ * striped cells instead of contending on one value, so recording never blocks and costs a few
+ * nanoseconds. The whole registry is written in the Prometheus text format by the {@link MetricsServer}.
+ * <p>
+ * Metrics are looked up by name; asking again for a name returns the metric registered first.
+ * Names follow the Prometheus conventions: counters end in {@code _total} and latencies are in seconds.
+ */
+public final class Metrics {
+
+    private static Metrics instance;
+
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    /**
+     * Returns the registry shared by the whole process.
+     *
+     * @return the shared Metrics instance.
+     */
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the counter with the given name, registering it the first time.
+     *
+     * @param name the metric name.
+     * @param help what the counter counts.
+     * @return the counter.
+     * @throws IllegalArgumentException if the name is taken by a metric of another type.
+     */
+    public Counter counter(String name, String help) {
+        return register(name, Counter.class, () -> new Counter(name, help));
+    }
+
+    /**
+     * Returns the latency histogram with the given name, registering it the first time.
+     *
+     * @param name the metric name.
+     * @param help what the histogram times.
+     * @return the histogram.
+     * @throws IllegalArgumentException if the name is taken by a metric of another type.
+     */
+    public Histogram histogram(String name, String help) {
+        return register(name, Histogram.class, () -> new Histogram(name, help));
+    }
+
+    /**
+     * Registers a gauge whose value is read every time the metrics are written.
+     * A gauge registered again under the same name replaces the previous one.
+     *
+     * @param name the metric name.
+     * @param help what the gauge measures.
+     * @param value supplies the current value; it must be cheap and must not block.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        metrics.put(name, new Gauge(name, help, value));
+    }
+
+    private <T extends Metric> T register(String name, Class<T> type, Supplier<T> factory) {
+        Metric metric = metrics.computeIfAbsent(name, key -> factory.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + metric.type());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format, ordered by name.
+     *
+     * @param writer where the metrics are written.
+     * @throws IOException if the writer fails.
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        for (Metric metric : metrics.values()) {
+            writer.write("# HELP " + metric.name + " " + metric.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            writer.write("# TYPE " + metric.name + " " + metric.type() + "\n");
+            metric.write(writer);
+        }
+    }
+
+    /**
+     * A named metric.
+     */
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void write(Writer writer) throws IOException;
+    }
+
+    /**
+     * A value that only goes up.
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * Adds one.
+         */
+        public void increment() {
+            count.increment();
+        }
+
+        /**
+         * Adds a non-negative amount.
+         *
+         * @param amount the amount to add.
+         */
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        /**
+         * Returns the current count.
+         *
+         * @return the sum of everything added.
+         */
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            writer.write(name + " " + count.sum() + "\n");
+        }
+    }
+
+    /**
+     * A value read when the metrics are written.
+     */
+    private static final class Gauge extends Metric {
+        private final DoubleSupplier value;
+
+        Gauge(String name, String help, DoubleSupplier value) {
+            super(name, help);
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            writer.write(name + " " + value.getAsDouble() + "\n");
+        }
+    }
+
+    /**
+     * A latency histogram with HDR-style log-linear buckets: every power of two of microseconds is split
+     * into {@value #SUB_BUCKETS} equal buckets, so a recorded latency is known within 25% from one
+     * microsecond up to 2<sup>37</sup> microseconds (about 38 hours), with a fixed set of
+     * {@link LongAdder}s and no allocation when recording. Longer latencies fall into the last bucket.
+     * It is exposed as a Prometheus histogram over the bucket bounds up to about two minutes, so the
+     * p50 and p99 of any time window can be taken with {@code histogram_quantile}.
+     */
+    public static final class Histogram extends Metric {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 36;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+        private static final long MAX_EXPORTED_MICROS = 1L << 27;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String name, String help) {
+            super(name, help);
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a latency.
+         *
+         * @param nanos the latency in nanoseconds.
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[indexOf(TimeUnit.NANOSECONDS.toMicros(nanos))].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time elapsed since a start taken with {@link System#nanoTime()}.
+         *
+         * @param startNanos the start of the timed operation.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Returns how many latencies were recorded.
+         *
+         * @return the number of recorded latencies.
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Estimates a quantile of the recorded latencies, as the upper bound of the bucket it falls in.
+         *
+         * @param quantile the quantile, between 0 and 1.
+         * @return the latency in nanoseconds, or 0 if nothing was recorded.
+         */
+        public long getValueAtQuantile(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(i));
+                }
+            }
+            return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(BUCKETS - 1));
+        }
+
+        /**
+         * Returns the bucket of a latency: the exact value below {@link #SUB_BUCKETS} microseconds,
+         * otherwise its power of two and the first bits after the leading one.
+         */
+        static int indexOf(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Returns the exclusive upper bound of a bucket, in microseconds.
+         */
+        static long upperBoundOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index + 1;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                long bound = upperBoundOf(i);
+                if (bound <= MAX_EXPORTED_MICROS) {
+                    writer.write(name + "_bucket{le=\"" + seconds(bound) + "\"} " + cumulative + "\n");
+                }
+            }
+            writer.write(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+            writer.write(name + "_sum " + sumNanos.sum() / 1e9 + "\n");
+            writer.write(name + "_count " + cumulative + "\n");
+        }
+
+        private static String seconds(long micros) {
+            return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+        }
+    }
+}
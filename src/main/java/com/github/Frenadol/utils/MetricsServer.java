@@ -0,0 +1,158 @@
+package com.github.Frenadol.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the {@link Metrics} of this instance in the Prometheus text format at {@code /metrics}.
+ * The server only listens on the loopback interface and answers one request at a time on a daemon thread.
+ * It is started when the {@code chattot.metrics.port} property is set; since every instance needs
+ * its own port, instances that share a machine are given different ports.
+ */
+public class MetricsServer {
+
+    private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+
+    /** System property with the port of the metrics endpoint. */
+    public static final String PORT_PROPERTY = "chattot.metrics.port";
+
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static MetricsServer instance;
+
+    private final Metrics metrics;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Binds a server to the given address. Nothing is served until {@link #start()} is called.
+     *
+     * @param address the address to listen on; use port 0 for any free port.
+     * @param metrics the registry to serve.
+     * @throws IOException if the address cannot be bound.
+     */
+    public MetricsServer(InetSocketAddress address, Metrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chattot-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts the shared metrics server if {@value #PORT_PROPERTY} is set, together with the JVM gauges.
+     * A port that cannot be bound is logged and the application goes on without metrics endpoint.
+     *
+     * @return the shared MetricsServer instance, or null if it is not configured or cannot be started.
+     */
+    public static synchronized MetricsServer startIfConfigured() {
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        if (instance != null || port == null) {
+            return instance;
+        }
+        Metrics metrics = Metrics.getInstance();
+        registerJvmGauges(metrics);
+        try {
+            MetricsServer server = new MetricsServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), metrics);
+            server.start();
+            instance = server;
+            logger.log(Level.INFO, "Serving metrics at http://localhost:{0,number,#}" + PATH, server.getPort());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot serve metrics on port " + port, e);
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the shared metrics server, if it was started.
+     */
+    public static void shutdown() {
+        MetricsServer server;
+        synchronized (MetricsServer.class) {
+            server = instance;
+            instance = null;
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Starts answering requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the local port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, without waiting for a request being answered.
+     */
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 * 1024);
+            try (Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
+                metrics.writePrometheus(writer);
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, buffer.size());
+            try (OutputStream body = exchange.getResponseBody()) {
+                buffer.writeTo(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void registerJvmGauges(Metrics metrics) {
+        Runtime runtime = Runtime.getRuntime();
+        metrics.gauge("chattot_jvm_heap_used_bytes", "Heap in use",
+                () -> runtime.totalMemory() - runtime.freeMemory());
+        metrics.gauge("chattot_jvm_heap_max_bytes", "Largest heap the JVM will use",
+                runtime::maxMemory);
+        metrics.gauge("chattot_jvm_threads", "Live threads",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        metrics.gauge("chattot_uptime_seconds", "Time since the JVM started",
+                () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    }
+}
@@ -0,0 +1,228 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.Normalizer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent inverted index over the content of the messages in the {@link MessageLog}.
+ * Every word maps to the positions of the messages containing it, in log order, so a search
+ * only looks at the messages of its rarest word instead of scanning the whole history.
+ * Words are compared lower-cased and without accents, so "canción" is found by "cancion".
+ * Like the {@link ConversationIndex}, every indexed message is appended to the index file as it is added,
+ * and entries for positions already indexed are ignored.
+ */
+public class SearchIndex implements MessageIndex {
+
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    private final Map<String, LongList> postings = new HashMap<>();
+    private final LongList positions = new LongList();
+    private final LongList timestamps = new LongList();
+    private DataOutputStream output;
+    private long lastPosition = -1;
+
+    /**
+     * Loads the search index stored in the given file, creating it if needed.
+     * An entry torn by a crash at the end of the file is discarded.
+     *
+     * @param file the index file.
+     * @throws IOException if the file cannot be read.
+     */
+    public SearchIndex(File file) throws IOException {
+        long validBytes = 0;
+
+        if (file.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    long position = input.readLong();
+                    long micros = input.readLong();
+                    int count = input.readInt();
+                    long entryBytes = 2L * Long.BYTES + Integer.BYTES;
+                    List<String> tokens = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        String token = input.readUTF();
+                        tokens.add(token);
+                        entryBytes += 2 + ConversationIndex.utfLength(token);
+                    }
+                    add(tokens, position, micros);
+                    validBytes += entryBytes;
+                }
+            } catch (EOFException e) {
+                // End of the index, or a torn entry that is cut off below.
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validBytes);
+            }
+        }
+
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Splits a text into the distinct words the index works with, lower-cased and without accents.
+     *
+     * @param text the text to split.
+     * @return the words of the text, in order of first appearance.
+     */
+    public static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String normalized = ACCENTS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : SEPARATORS.split(normalized.toLowerCase(Locale.ROOT))) {
+            if (!token.isEmpty()) {
+                tokens.add(token.length() > MAX_TOKEN_LENGTH ? token.substring(0, MAX_TOKEN_LENGTH) : token);
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    @Override
+    public synchronized long getLastPosition() {
+        return lastPosition;
+    }
+
+    @Override
+    public synchronized void index(Message message, long position) throws IOException {
+        write(message, position);
+        output.flush();
+    }
+
+    @Override
+    public synchronized void indexAll(List<Message> messages, long[] positions) throws IOException {
+        for (int i = 0; i < messages.size(); i++) {
+            write(messages.get(i), positions[i]);
+        }
+        output.flush();
+    }
+
+    private void write(Message message, long position) throws IOException {
+        if (position <= lastPosition) {
+            return;
+        }
+        List<String> tokens = tokenize(message.getContent());
+        long micros = MessageLog.epochMicrosOf(message);
+        output.writeLong(position);
+        output.writeLong(micros);
+        output.writeInt(tokens.size());
+        for (String token : tokens) {
+            output.writeUTF(token);
+        }
+        add(tokens, position, micros);
+    }
+
+    private void add(List<String> tokens, long position, long micros) {
+        if (position <= lastPosition) {
+            return;
+        }
+        for (String token : tokens) {
+            postings.computeIfAbsent(token, k -> new LongList(2)).add(position);
+        }
+        positions.add(position);
+        timestamps.add(micros);
+        lastPosition = position;
+    }
+
+    /**
+     * Finds the messages that contain every word of a query.
+     *
+     * @param query the words to look for.
+     * @param within the positions the search is limited to, in ascending order, or null to search every message.
+     * @param from the earliest timestamp of a match, inclusive, or null for no lower bound.
+     * @param to the latest timestamp of a match, exclusive, or null for no upper bound.
+     * @param limit the largest number of matches to return.
+     * @return the positions of the newest matches, in ascending order.
+     */
+    public synchronized long[] search(String query, long[] within, LocalDateTime from, LocalDateTime to, int limit) {
+        List<LongList> lists = new ArrayList<>();
+        for (String token : tokenize(query)) {
+            LongList list = postings.get(token);
+            if (list == null) {
+                return new long[0];
+            }
+            lists.add(list);
+        }
+        if (lists.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        lists.sort(Comparator.comparingInt(LongList::size));
+
+        long fromMicros = from == null ? Long.MIN_VALUE : MessageLog.toEpochMicros(from);
+        long toMicros = to == null ? Long.MAX_VALUE : MessageLog.toEpochMicros(to);
+        LongList matches = new LongList();
+
+        // Walk the shortest candidate list from the newest message back, probing the others.
+        if (within != null && within.length < lists.get(0).size()) {
+            for (int i = within.length - 1; i >= 0 && matches.size() < limit; i--) {
+                if (matches(within[i], lists, 0, null, fromMicros, toMicros)) {
+                    matches.add(within[i]);
+                }
+            }
+        } else {
+            LongList candidates = lists.get(0);
+            for (int i = candidates.size() - 1; i >= 0 && matches.size() < limit; i--) {
+                if (matches(candidates.get(i), lists, 1, within, fromMicros, toMicros)) {
+                    matches.add(candidates.get(i));
+                }
+            }
+        }
+
+        long[] result = matches.toArray();
+        for (int i = 0, j = result.length - 1; i < j; i++, j--) {
+            long swap = result[i];
+            result[i] = result[j];
+            result[j] = swap;
+        }
+        return result;
+    }
+
+    private boolean matches(long position, List<LongList> lists, int firstList, long[] within, long fromMicros, long toMicros) {
+        for (int i = firstList; i < lists.size(); i++) {
+            if (lists.get(i).binarySearch(position) < 0) {
+                return false;
+            }
+        }
+        if (within != null && Arrays.binarySearch(within, position) < 0) {
+            return false;
+        }
+        if (fromMicros != Long.MIN_VALUE || toMicros != Long.MAX_VALUE) {
+            long micros = timestamps.get(positions.binarySearch(position));
+            return micros >= fromMicros && micros < toMicros;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the index file.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+}
@@ -34,4 +34,15 @@ public class Security {
         String sha3Hex = bytesToHex(hashbytes);
         return sha3Hex;
     }
+
+    /**
+     * Hashes arbitrary data using the SHA-3 cryptographic hash function.
+     * @param data The bytes to hash.
+     * @return The hash as a hexadecimal string.
+     * @throws NoSuchAlgorithmException if the specified algorithm is not available.
+     */
+    public static String hashBytes(byte[] data) throws NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA3-256");
+        return bytesToHex(digest.digest(data));
+    }
 }
@@ -0,0 +1,182 @@
+package com.github.Frenadol.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates the instances of the application that share a data file.
+ * A small lock file next to the data holds a generation number that every writer increments,
+ * and an exclusive {@link FileLock} on it is only held while the data is being written.
+ * Writers read the generation without locking, prepare their change, and commit it only if the
+ * generation is still the one they read, so they only retry when another instance wrote in between.
+ * Within one process the lock is reentrant and threads take turns on the same instance.
+ */
+public final class StoreLock {
+
+    /**
+     * Work done while the lock is held.
+     *
+     * @param <T> the type of the result.
+     */
+    public interface Action<T> {
+
+        /**
+         * Runs the work.
+         *
+         * @param generation the generation of the data when the lock was taken.
+         * @return the result of the work.
+         * @throws IOException if the data cannot be read or written.
+         */
+        T run(long generation) throws IOException;
+    }
+
+    private static final Map<String, StoreLock> locks = new HashMap<>();
+
+    private final File file;
+    private final ReentrantLock threadLock = new ReentrantLock();
+    private FileChannel channel;
+
+    private StoreLock(File file) throws IOException {
+        this.file = file;
+        this.channel = open();
+    }
+
+    /**
+     * Returns the lock kept in the given file, creating the file if needed.
+     * Every caller in the process gets the same instance for the same file.
+     *
+     * @param file the lock file.
+     * @return the lock of that file.
+     * @throws IOException if the lock file cannot be opened.
+     */
+    public static synchronized StoreLock forFile(File file) throws IOException {
+        String key = file.getAbsoluteFile().toPath().normalize().toString();
+        StoreLock lock = locks.get(key);
+        if (lock == null) {
+            lock = new StoreLock(file);
+            locks.put(key, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Reads the current generation without taking the lock.
+     * The value is only a hint of whether the data changed; commits check it again under the lock.
+     *
+     * @return the generation, 0 if nothing was ever written.
+     * @throws IOException if the lock file cannot be read.
+     */
+    public long getGeneration() throws IOException {
+        threadLock.lock();
+        try {
+            return readGeneration();
+        } finally {
+            threadLock.unlock();
+        }
+    }
+
+    /**
+     * Runs some work while holding the lock, without changing the generation.
+     *
+     * @param action the work to run.
+     * @param <T> the type of the result.
+     * @return the result of the work.
+     * @throws IOException if the lock cannot be taken or the work fails.
+     */
+    public <T> T locked(Action<T> action) throws IOException {
+        threadLock.lock();
+        try {
+            if (threadLock.getHoldCount() > 1) {
+                return action.run(readGeneration());
+            }
+            FileLock fileLock = channel().lock();
+            try {
+                return action.run(readGeneration());
+            } finally {
+                if (fileLock.isValid()) {
+                    fileLock.release();
+                }
+            }
+        } finally {
+            threadLock.unlock();
+        }
+    }
+
+    /**
+     * Runs a change to the data while holding the lock, then moves to the next generation.
+     * The generation is left as it was if the change fails.
+     *
+     * @param action the change to run.
+     * @param <T> the type of the result.
+     * @return the result of the change.
+     * @throws IOException if the lock cannot be taken or the change fails.
+     */
+    public <T> T update(Action<T> action) throws IOException {
+        return locked(generation -> {
+            T result = action.run(generation);
+            writeGeneration(generation + 1);
+            return result;
+        });
+    }
+
+    /**
+     * Writes a change prepared from the data of an earlier generation, unless another writer got there first.
+     *
+     * @param expected the generation the change was prepared from.
+     * @param write the work that writes the change.
+     * @return true if the change was written, false if the generation moved on and the change must be prepared again.
+     * @throws IOException if the lock cannot be taken or the write fails.
+     */
+    public boolean commit(long expected, Action<?> write) throws IOException {
+        return locked(generation -> {
+            if (generation != expected) {
+                return false;
+            }
+            write.run(generation);
+            writeGeneration(generation + 1);
+            return true;
+        });
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        FileChannel current = channel();
+        while (buffer.hasRemaining()) {
+            if (current.read(buffer, buffer.position()) < 0) {
+                return 0;
+            }
+        }
+        buffer.flip();
+        return buffer.getLong();
+    }
+
+    private void writeGeneration(long generation) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(generation);
+        buffer.flip();
+        FileChannel current = channel();
+        while (buffer.hasRemaining()) {
+            current.write(buffer, buffer.position());
+        }
+    }
+
+    /**
+     * Returns the channel of the lock file, opening it again if an interrupted thread closed it.
+     */
+    private FileChannel channel() throws IOException {
+        if (!channel.isOpen()) {
+            channel = open();
+        }
+        return channel;
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
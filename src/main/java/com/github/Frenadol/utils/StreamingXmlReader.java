@@ -0,0 +1,323 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Pull-parser readers for UsersData.xml and ChatData.xml.
+ * Unlike {@link XmlReader}, which builds a DOM of the whole file, these readers produce
+ * one {@link User} or {@link Message} at a time, can stop as soon as the caller has what it needs,
+ * and can skip legacy base64 profile images without ever holding them in memory.
+ * Images stored in the {@link AvatarStore} are referenced by hash and only loaded when asked for.
+ */
+public class StreamingXmlReader {
+
+    private static final ThreadLocal<XMLInputFactory> factory = ThreadLocal.withInitial(XMLInputFactory::newInstance);
+
+    private StreamingXmlReader() {}
+
+    /**
+     * Visits the users of the XML file one by one, until the visitor returns false.
+     * Every call is recorded as a {@link FlightEvents.UserFileParse} event.
+     *
+     * @param filePath the path to the users XML file.
+     * @param withImages whether legacy inline images should be decoded; if false they are skipped and left null.
+     * @param visitor receives each user and returns true to keep reading.
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    public static void forEachUser(String filePath, boolean withImages, Predicate<User> visitor) throws IOException {
+        FlightEvents.UserFileParse event = new FlightEvents.UserFileParse();
+        event.begin();
+        try (UserIterator users = openUsers(filePath, withImages)) {
+            while (users.hasNext()) {
+                event.userCount++;
+                if (!visitor.test(users.next())) {
+                    return;
+                }
+            }
+            event.complete = true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = filePath;
+                event.bytesRead = new File(filePath).length();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Finds a user by name, stopping at the first match.
+     *
+     * @param filePath the path to the users XML file.
+     * @param name the name of the user to find.
+     * @param withImages whether profile images should be decoded.
+     * @return the user, or null if the file does not exist or has no such user.
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    public static User findUser(String filePath, String name, boolean withImages) throws IOException {
+        User[] found = new User[1];
+        forEachUser(filePath, withImages, user -> {
+            if (user.getName().equals(name)) {
+                found[0] = user;
+                return false;
+            }
+            return true;
+        });
+        return found[0];
+    }
+
+    /**
+     * Opens an iterator over the users of the XML file.
+     * The iterator must be closed, ideally with try-with-resources.
+     *
+     * @param filePath the path to the users XML file.
+     * @param withImages whether profile images should be decoded.
+     * @return an iterator that parses the next user on demand; empty if the file does not exist.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static UserIterator openUsers(String filePath, boolean withImages) throws IOException {
+        return new UserIterator(new File(filePath), withImages);
+    }
+
+    /**
+     * Visits the messages of a ChatData.xml file one by one, until the visitor returns false.
+     * Messages whose sender or receiver cannot be resolved are skipped.
+     *
+     * @param filePath the path to the messages XML file.
+     * @param resolver turns a user name into a User, or returns null if the user is unknown.
+     * @param visitor receives each message and returns true to keep reading.
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    public static void forEachMessage(String filePath, Function<String, User> resolver, Predicate<Message> visitor) throws IOException {
+        File xmlFile = new File(filePath);
+        if (!xmlFile.exists()) {
+            return;
+        }
+
+        FlightEvents.MessageFileParse event = new FlightEvents.MessageFileParse();
+        event.begin();
+        try (InputStream input = new BufferedInputStream(new FileInputStream(xmlFile))) {
+            XMLStreamReader reader = factory.get().createXMLStreamReader(input);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("message")) {
+                        Message message = readMessage(reader, resolver);
+                        event.recordCount++;
+                        if (message != null && !visitor.test(message)) {
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot parse " + filePath, e);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = filePath;
+                event.operation = "xml";
+                event.bytesRead = xmlFile.length();
+                event.commit();
+            }
+        }
+    }
+
+    private static Message readMessage(XMLStreamReader reader, Function<String, User> resolver) throws XMLStreamException {
+        String senderName = null;
+        String receiverName = null;
+        String content = null;
+        String timestamp = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("message")) {
+                break;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "sender":
+                        senderName = reader.getElementText();
+                        break;
+                    case "receiver":
+                        receiverName = reader.getElementText();
+                        break;
+                    case "content":
+                        content = reader.getElementText();
+                        break;
+                    case "timestamp":
+                        timestamp = reader.getElementText();
+                        break;
+                    default:
+                        skipElement(reader);
+                        break;
+                }
+            }
+        }
+
+        User sender = senderName != null ? resolver.apply(senderName) : null;
+        User receiver = receiverName != null ? resolver.apply(receiverName) : null;
+        if (sender == null || receiver == null || timestamp == null) {
+            System.err.println("Error: Sender or Receiver not found for message: " + content);
+            return null;
+        }
+        return new Message(sender, receiver, content, LocalDateTime.parse(timestamp.trim()));
+    }
+
+    /**
+     * Reads a user or contact element; the reader is positioned on its start tag.
+     */
+    private static User readUser(XMLStreamReader reader, boolean withImages) throws XMLStreamException {
+        String elementName = reader.getLocalName();
+        String name = null;
+        String password = null;
+        byte[] image = null;
+        String imageHash = null;
+        List<User> contacts = new ArrayList<>();
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(elementName)) {
+                break;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "username":
+                        name = reader.getElementText();
+                        break;
+                    case "password":
+                        password = reader.getElementText();
+                        break;
+                    case "imageRef":
+                        imageHash = reader.getElementText().trim();
+                        break;
+                    case "image":
+                        if (withImages) {
+                            image = Base64.getDecoder().decode(reader.getElementText().trim());
+                        } else {
+                            skipElement(reader);
+                        }
+                        break;
+                    case "contact":
+                        contacts.add(readUser(reader, withImages));
+                        break;
+                    case "contacts":
+                        break;
+                    default:
+                        skipElement(reader);
+                        break;
+                }
+            }
+        }
+
+        User user = new User(name, password, image, contacts);
+        if (imageHash != null && !imageHash.isEmpty()) {
+            user.setProfileImageHash(imageHash);
+        }
+        return user;
+    }
+
+    /**
+     * Skips the current element and all its content without accumulating its text.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Iterator that parses one user element per call to {@link #next()}.
+     */
+    public static class UserIterator implements Iterator<User>, AutoCloseable {
+        private final InputStream input;
+        private final XMLStreamReader reader;
+        private final boolean withImages;
+        private User next;
+
+        private UserIterator(File xmlFile, boolean withImages) throws IOException {
+            this.withImages = withImages;
+            if (!xmlFile.exists()) {
+                input = null;
+                reader = null;
+                return;
+            }
+            input = new BufferedInputStream(new FileInputStream(xmlFile));
+            try {
+                reader = factory.get().createXMLStreamReader(input);
+            } catch (XMLStreamException e) {
+                input.close();
+                throw new IOException("Cannot parse " + xmlFile, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && reader != null) {
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("user")) {
+                            next = readUser(reader, withImages);
+                            break;
+                        }
+                    }
+                } catch (XMLStreamException e) {
+                    throw new UncheckedIOException(new IOException("Cannot parse users", e));
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public User next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            User user = next;
+            next = null;
+            return user;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                } finally {
+                    input.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of the users stored in UsersData.xml.
+ * The file is parsed once and only parsed again when its modification time or size changes,
+ * and local writes go through this class so the cache is updated in place instead of reloaded.
+ * The {@link CredentialIndex} and the {@link ContactGraph} next to the users file are kept in sync
+ * with every registration and new contact.
+ * <p>
+ * Other instances of the application may write the same file. Every change is prepared from the
+ * users as of a {@link StoreLock} generation and only written if the generation is unchanged; otherwise
+ * the file is read again and the change is prepared again, so no instance overwrites another's users.
+ * A file that still has images inlined as base64 is rewritten the same way once it is read,
+ * with the images moved to the {@link AvatarStore}.
+ */
+public class UserDirectory {
+
+    private static final String DEFAULT_FILE = "UsersData.xml";
+    private static final String CREDENTIALS_SUFFIX = ".credentials";
+    private static final String CONTACTS_SUFFIX = ".contacts";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final Logger logger = Logger.getLogger(UserDirectory.class.getName());
+
+    private static UserDirectory instance;
+
+    private final String filePath;
+    private final CredentialIndex credentials;
+    private final ContactGraph contactGraph;
+    private List<User> users = new ArrayList<>();
+    private Map<String, User> usersByName = new HashMap<>();
+    private long loadedModified = -1;
+    private long loadedLength = -1;
+    private long loadedGeneration = -1;
+    private StoreLock lock;
+
+    /**
+     * Creates a directory backed by the given users file. Nothing is read until it is first used.
+     *
+     * @param filePath the path to the users XML file.
+     */
+    public UserDirectory(String filePath) {
+        this.filePath = filePath;
+        this.credentials = new CredentialIndex(new File(filePath + CREDENTIALS_SUFFIX), new File(filePath),
+                new File(filePath + LOCK_SUFFIX));
+        this.contactGraph = new ContactGraph(new File(filePath + CONTACTS_SUFFIX), new File(filePath),
+                new File(filePath + LOCK_SUFFIX));
+    }
+
+    /**
+     * Returns the directory of the UsersData.xml file in the working directory.
+     *
+     * @return the shared UserDirectory instance.
+     */
+    public static synchronized UserDirectory getInstance() {
+        if (instance == null) {
+            instance = new UserDirectory(DEFAULT_FILE);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns every user, in file order.
+     * The list is a copy that the caller may modify; the users in it are the cached instances.
+     *
+     * @return a list of all users.
+     */
+    public synchronized List<User> getUsers() {
+        refreshIfChanged(generation());
+        return new ArrayList<>(users);
+    }
+
+    /**
+     * Returns the credential index of the users file, for logins that only need the password hash.
+     * Using it does not read the users file.
+     *
+     * @return the credential index.
+     */
+    public CredentialIndex getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * Returns the contact graph of the users file, for contact checks that should not walk contact lists.
+     *
+     * @return the contact graph.
+     */
+    public ContactGraph getContactGraph() {
+        return contactGraph;
+    }
+
+    /**
+     * Returns the users that a user does not have as contacts yet, leaving out the user.
+     * The names come from the {@link ContactGraph}; only the users themselves come from the cache.
+     *
+     * @param userName the name of the user.
+     * @return the other users, in order of registration.
+     */
+    public synchronized List<User> getNonContacts(String userName) {
+        refreshIfChanged(generation());
+        List<String> names;
+        try {
+            names = contactGraph.getNonContacts(userName);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot read the contact graph, filtering the users directly", e);
+            User user = usersByName.get(userName);
+            List<User> others = new ArrayList<>(users);
+            others.removeIf(other -> other.getName().equals(userName) || (user != null && user.getContacts().contains(other)));
+            return others;
+        }
+        List<User> result = new ArrayList<>(names.size());
+        for (String name : names) {
+            User user = usersByName.get(name);
+            if (user != null) {
+                result.add(user);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds a user by name.
+     *
+     * @param name the name of the user.
+     * @return the cached user, or null if there is no such user.
+     */
+    public synchronized User find(String name) {
+        refreshIfChanged(generation());
+        return usersByName.get(name);
+    }
+
+    /**
+     * Checks whether a user name is already taken.
+     *
+     * @param name the name to check.
+     * @return true if a user with that name exists.
+     */
+    public synchronized boolean exists(String name) {
+        return find(name) != null;
+    }
+
+    /**
+     * Adds a new user and saves the users file, unless the name is already taken.
+     *
+     * @param user the user to add.
+     * @return true if the user was added, false if a user with that name already exists.
+     * @throws IOException if the users file cannot be written.
+     */
+    public synchronized boolean addUser(User user) throws IOException {
+        while (true) {
+            long generation = generation();
+            refreshIfChanged(generation);
+            if (usersByName.containsKey(user.getName())) {
+                return false;
+            }
+            users.add(user);
+            usersByName.put(user.getName(), user);
+            if (save(generation, () -> {
+                credentials.put(user.getName(), user.getPassword());
+                contactGraph.addUser(user.getName());
+            })) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds a contact to a user, unless it is already there, and saves the users file.
+     *
+     * @param userName the name of the user that gets the new contact.
+     * @param contact the contact to add.
+     * @return the updated contact list of the user, or null if the user does not exist.
+     * @throws IOException if the users file cannot be written.
+     */
+    public synchronized List<User> addContact(String userName, User contact) throws IOException {
+        while (true) {
+            long generation = generation();
+            refreshIfChanged(generation);
+            User user = usersByName.get(userName);
+            if (user == null) {
+                return null;
+            }
+            if (user.getContacts().contains(contact)) {
+                return new ArrayList<>(user.getContacts());
+            }
+            user.addContactToList(contact);
+            if (save(generation, () -> contactGraph.addContact(userName, contact.getName()))) {
+                return new ArrayList<>(user.getContacts());
+            }
+        }
+    }
+
+    /**
+     * Drops the cached users, so the next access reads the file again.
+     */
+    public synchronized void invalidate() {
+        loadedModified = -1;
+        loadedLength = -1;
+        loadedGeneration = -1;
+    }
+
+    /**
+     * Updates the files kept next to the users file while a change is saved.
+     */
+    private interface IndexUpdate {
+        void run() throws IOException;
+    }
+
+    /**
+     * Writes the cached users if no other instance saved the file since they were loaded.
+     * On a conflict the cache is dropped, so the caller reloads it and applies its change again.
+     * If the file cannot be written the cache is dropped as well, since it holds a change that was not saved.
+     *
+     * @param generation the generation the cached users were loaded at.
+     * @param indexUpdate the change to the credential index and contact graph that goes with the save.
+     * @return true if the file was written, false on a conflict.
+     * @throws IOException if the file cannot be written.
+     */
+    private boolean save(long generation, IndexUpdate indexUpdate) throws IOException {
+        try {
+            StoreLock storeLock = generation < 0 ? null : lockOrNull();
+            if (storeLock == null) {
+                write(indexUpdate);
+            } else if (storeLock.commit(generation, current -> write(indexUpdate))) {
+                loadedGeneration = generation + 1;
+            } else {
+                invalidate();
+                return false;
+            }
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+        rememberFileState();
+        try {
+            credentials.markCurrent();
+            contactGraph.markCurrent();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot update the indexes of " + filePath + ", they will be rebuilt", e);
+            credentials.invalidate();
+            contactGraph.invalidate();
+        }
+        return true;
+    }
+
+    /**
+     * Updates the indexes and saves the users file. If the file cannot be saved, the entries the update
+     * appended to the credential index and the contact graph are cut off again, so a registration that failed
+     * leaves no login behind and a contact that was not saved does not show up in contact checks.
+     */
+    private Void write(IndexUpdate indexUpdate) throws IOException {
+        long credentialsLength = credentials.length();
+        long graphLength = contactGraph.length();
+        try {
+            indexUpdate.run();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot update the indexes of " + filePath + ", they will be rebuilt", e);
+            credentials.invalidate();
+            contactGraph.invalidate();
+        }
+        try {
+            XmlReader.saveUsersToXML(users, filePath);
+        } catch (IOException e) {
+            try {
+                credentials.rollBack(credentialsLength);
+            } catch (IOException rollBackError) {
+                e.addSuppressed(rollBackError);
+            }
+            try {
+                contactGraph.rollBack(graphLength);
+            } catch (IOException rollBackError) {
+                e.addSuppressed(rollBackError);
+            }
+            throw e;
+        }
+        return null;
+    }
+
+    private StoreLock lock() throws IOException {
+        if (lock == null) {
+            lock = StoreLock.forFile(new File(filePath + LOCK_SUFFIX));
+        }
+        return lock;
+    }
+
+    /**
+     * Returns the lock of the users file, or null if the lock file cannot be opened,
+     * in which case changes are saved without coordination.
+     */
+    private StoreLock lockOrNull() {
+        try {
+            return lock();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot lock " + filePath + ", saving without coordination", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the generation of the users file, or -1 if the lock file cannot be read,
+     * in which case changes are only noticed from the modification time and size of the file.
+     */
+    private long generation() {
+        try {
+            return lock().getGeneration();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot read the lock of " + filePath, e);
+            return -1;
+        }
+    }
+
+    private void refreshIfChanged(long generation) {
+        File file = new File(filePath);
+        if (generation == loadedGeneration && file.lastModified() == loadedModified && file.length() == loadedLength) {
+            return;
+        }
+
+        List<User> loaded = XmlReader.getUsersFromXML(filePath);
+        Map<String, User> byName = new HashMap<>(loaded.size() * 2);
+        for (User user : loaded) {
+            byName.put(user.getName(), user);
+        }
+        users = loaded;
+        usersByName = byName;
+        loadedGeneration = generation;
+        rememberFileState();
+
+        if (XmlReader.hasInlineImages(loaded)) {
+            try {
+                save(generation, () -> { });
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot move the images of " + filePath + " to the avatar store", e);
+                loadedGeneration = generation;
+                rememberFileState();
+            }
+        }
+    }
+
+    private void rememberFileState() {
+        File file = new File(filePath);
+        loadedModified = file.lastModified();
+        loadedLength = file.length();
+    }
+}
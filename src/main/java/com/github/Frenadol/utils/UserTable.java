@@ -0,0 +1,60 @@
+package com.github.Frenadol.utils;
+
+import com.github.Frenadol.model.User;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns the users named in stored messages: every name gets a dense integer id and a single
+ * {@link User} instance, so messages only keep two ints instead of two users of their own.
+ * The users handed out only carry a name and must not be modified.
+ */
+public class UserTable {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private User[] users = new User[64];
+    private int size;
+
+    /**
+     * Returns the id of a user name, giving it the next free id if it has none yet.
+     *
+     * @param name the name of the user.
+     * @return the id of the name.
+     */
+    public synchronized int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            if (size == users.length) {
+                users = Arrays.copyOf(users, size * 2);
+            }
+            id = size;
+            users[size++] = new User(name, null, null, null);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the user with the given id.
+     *
+     * @param id an id returned by {@link #idOf(String)}.
+     * @return the shared user with that id.
+     */
+    public synchronized User get(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No user with id " + id);
+        }
+        return users[id];
+    }
+
+    /**
+     * Returns how many names have an id.
+     *
+     * @return the number of interned users.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -5,13 +5,16 @@ import com.github.Frenadol.model.User;
 import org.w3c.dom.*;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.File;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,8 +23,16 @@ import java.util.List;
  */
 public class XmlReader {
 
+    private static final Metrics.Histogram usersLoadLatency = Metrics.getInstance().histogram(
+            "chattot_users_load_seconds", "Time to read the users file");
+    private static final Metrics.Histogram usersSaveLatency = Metrics.getInstance().histogram(
+            "chattot_users_save_seconds", "Time to write the users file");
+    private static final Metrics.Histogram messagesLoadLatency = Metrics.getInstance().histogram(
+            "chattot_messages_xml_load_seconds", "Time to read a legacy messages XML file");
+    private static final Metrics.Counter errors = Metrics.getInstance().counter(
+            "chattot_xml_errors_total", "Users or messages XML files that could not be read or written");
+
     public String filePath;
-    private static String usersPathChat = "UsersData.xml";
 
     /**
      * Constructor to initialize the XmlReader with a specific file path.
@@ -34,59 +45,41 @@ public class XmlReader {
 
     /**
      * Reads users from the specified XML file and returns a list of User objects.
+     * Images are referenced by hash and loaded lazily from the {@link AvatarStore}.
+     * Users of a file that still has images inlined as base64 keep them in memory;
+     * the {@link UserDirectory} moves them to the avatar store.
      *
      * @param filePath the path to the XML file.
      * @return a list of User objects.
      */
     public static List<User> getUsersFromXML(String filePath) {
+        long start = System.nanoTime();
         List<User> users = new ArrayList<>();
 
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new File(filePath));
-            document.getDocumentElement().normalize();
-
-            NodeList nodeList = document.getElementsByTagName("user");
-
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                Node node = nodeList.item(i);
-
-                if (node.getNodeType() == Node.ELEMENT_NODE) {
-                    Element element = (Element) node;
-                    String name = element.getElementsByTagName("username").item(0).getTextContent();
-                    String password = element.getElementsByTagName("password").item(0).getTextContent();
-                    String imageBase64 = element.getElementsByTagName("image").item(0).getTextContent();
-                    byte[] image = java.util.Base64.getDecoder().decode(imageBase64);
-
-                    List<User> contacts = new ArrayList<>();
-                    NodeList contactNodes = element.getElementsByTagName("contact");
-                    for (int j = 0; j < contactNodes.getLength(); j++) {
-                        Element contactElement = (Element) contactNodes.item(j);
-                        String contactName = contactElement.getElementsByTagName("username").item(0).getTextContent();
-                        String contactPassword = contactElement.getElementsByTagName("password").item(0).getTextContent();
-                        String contactImageBase64 = contactElement.getElementsByTagName("image").item(0).getTextContent();
-                        byte[] contactImage = java.util.Base64.getDecoder().decode(contactImageBase64);
-                        contacts.add(new User(contactName, contactPassword, contactImage, null));
-                    }
-
-                    users.add(new User(name, password, image, contacts));
-                }
-            }
+            StreamingXmlReader.forEachUser(filePath, true, users::add);
         } catch (Exception e) {
+            errors.increment();
             e.printStackTrace();
         }
 
+        usersLoadLatency.recordSince(start);
         return users;
     }
 
     /**
      * Saves a list of User objects to the specified XML file.
+     * Profile images are written once to the {@link AvatarStore} and users and contacts only keep their hash.
+     * The file is written next to the old one and then moved over it, so other instances never read half of it.
      *
      * @param users the list of User objects to save.
      * @param filePath the path to the XML file.
+     * @throws IOException if the file or an image cannot be written.
      */
-    public static void saveUsersToXML(List<User> users, String filePath) {
+    public static void saveUsersToXML(List<User> users, String filePath) throws IOException {
+        long start = System.nanoTime();
+        FlightEvents.Save event = new FlightEvents.Save();
+        event.begin();
         try {
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             DocumentBuilder builder = factory.newDocumentBuilder();
@@ -106,9 +99,8 @@ public class XmlReader {
                 password.appendChild(document.createTextNode(user.getPassword()));
                 userElement.appendChild(password);
 
-                Element image = document.createElement("image");
-                String imageBase64 = java.util.Base64.getEncoder().encodeToString(user.getProfileImage());
-                image.appendChild(document.createTextNode(imageBase64));
+                Element image = document.createElement("imageRef");
+                image.appendChild(document.createTextNode(storeImage(user)));
                 userElement.appendChild(image);
 
                 Element contactsElement = document.createElement("contacts");
@@ -123,9 +115,8 @@ public class XmlReader {
                     contactPassword.appendChild(document.createTextNode(contact.getPassword()));
                     contactElement.appendChild(contactPassword);
 
-                    Element contactImage = document.createElement("image");
-                    String contactImageBase64 = java.util.Base64.getEncoder().encodeToString(contact.getProfileImage());
-                    contactImage.appendChild(document.createTextNode(contactImageBase64));
+                    Element contactImage = document.createElement("imageRef");
+                    contactImage.appendChild(document.createTextNode(storeImage(contact)));
                     contactElement.appendChild(contactImage);
 
                     contactsElement.appendChild(contactElement);
@@ -138,116 +129,120 @@ public class XmlReader {
             TransformerFactory transformerFactory = TransformerFactory.newInstance();
             Transformer transformer = transformerFactory.newTransformer();
             DOMSource source = new DOMSource(document);
-            StreamResult result = new StreamResult(new File(filePath));
-            transformer.transform(source, result);
+            File target = new File(filePath).getAbsoluteFile();
+            File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+            try {
+                transformer.transform(source, new StreamResult(temp));
+                event.bytesWritten = temp.length();
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            errors.increment();
+            throw e;
+        } catch (ParserConfigurationException | TransformerException e) {
+            errors.increment();
+            throw new IOException("Cannot write " + filePath, e);
+        } finally {
+            usersSaveLatency.recordSince(start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = filePath;
+                event.recordCount = users.size();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Stores the profile image of a user in the avatar store if it is not there yet.
+     *
+     * @param user the user whose image is stored.
+     * @return the hash of the image, or an empty string if the user has no image.
+     * @throws IOException if the image cannot be written.
+     */
+    private static String storeImage(User user) throws IOException {
+        if (user.getProfileImageHash() == null) {
+            if (user.getProfileImage() == null) {
+                return "";
+            }
+            user.setProfileImageHash(AvatarStore.getInstance().store(user.getProfileImage()));
         }
+        return user.getProfileImageHash();
     }
 
-    private static final DateTimeFormatter formatter = DateTimeFormatter.ISO_DATE_TIME;
+    /**
+     * Checks whether any user or contact was read with a base64 image instead of a hash.
+     *
+     * @param users the users to check.
+     * @return true if the file still uses inline images.
+     */
+    static boolean hasInlineImages(List<User> users) {
+        for (User user : users) {
+            if (user.getProfileImageHash() == null && user.getProfileImage() != null) {
+                return true;
+            }
+            for (User contact : user.getContacts()) {
+                if (contact.getProfileImageHash() == null && contact.getProfileImage() != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
     /**
      * Reads messages from the specified XML file and returns a list of Message objects.
+     * Sender and receiver are resolved through the shared {@link UserDirectory}.
      *
      * @param filePath the path to the XML file.
      * @return a list of Message objects.
      */
     public static List<Message> getMessagesFromXML(String filePath) {
+        return getMessagesFromXML(filePath, UserDirectory.getInstance());
+    }
+
+    /**
+     * Reads messages from the specified XML file, resolving sender and receiver through the given directory.
+     *
+     * @param filePath the path to the XML file.
+     * @param directory the directory used to look up users by name.
+     * @return a list of Message objects.
+     */
+    public static List<Message> getMessagesFromXML(String filePath, UserDirectory directory) {
+        long start = System.nanoTime();
         List<Message> messages = new ArrayList<>();
-        List<User> users = getUsersFromXML(usersPathChat);
 
         try {
-            File xmlFile = new File(filePath);
-            if (!xmlFile.exists()) {
-                return messages;
-            }
-
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(xmlFile);
-            doc.getDocumentElement().normalize();
-
-            NodeList nodeList = doc.getElementsByTagName("message");
-
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                Node node = nodeList.item(i);
-                if (node.getNodeType() == Node.ELEMENT_NODE) {
-                    Element element = (Element) node;
-
-                    String senderName = element.getElementsByTagName("sender").item(0).getTextContent();
-                    String receiverName = element.getElementsByTagName("receiver").item(0).getTextContent();
-                    String content = element.getElementsByTagName("content").item(0).getTextContent();
-                    String timestampStr = element.getElementsByTagName("timestamp").item(0).getTextContent();
-
-                    User sender = findUserByName(users, senderName);
-                    User receiver = findUserByName(users, receiverName);
-
-                    if (sender != null && receiver != null) {
-                        LocalDateTime timestamp = LocalDateTime.parse(timestampStr, formatter);
-                        messages.add(new Message(sender, receiver, content, timestamp));
-                    } else {
-                        System.err.println("Error: Sender or Receiver not found for message: " + content);
-                    }
-                }
-            }
+            StreamingXmlReader.forEachMessage(filePath, directory::find, messages::add);
         } catch (Exception e) {
+            errors.increment();
             e.printStackTrace();
         }
 
+        messagesLoadLatency.recordSince(start);
         return messages;
     }
 
     /**
-     * Finds a user by their name from a list of users.
+     * Checks whether a user is already among the contacts of the current user.
+     * The file is streamed and reading stops as soon as the current user has been found.
      *
-     * @param users the list of users to search.
-     * @param name the name of the user to find.
-     * @return the User object if found, null otherwise.
+     * @param username the name of the contact to look for.
+     * @param filePath the path to the users XML file.
+     * @param currentUser the user whose contacts are checked.
+     * @return true if the contact exists, false otherwise.
+     * @throws Exception if the XML file cannot be read.
      */
-    private static User findUserByName(List<User> users, String name) {
-        for (User user : users) {
-            if (user.getName().equals(name)) {
-                return user;
-            }
-        }
-        return null;
-    }
     public static boolean isUserExists(String username, String filePath, User currentUser) throws Exception {
-        File xmlFile = new File(filePath);
-        if (!xmlFile.exists()) return false;
-
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-        Document doc = dBuilder.parse(xmlFile);
-        doc.getDocumentElement().normalize();
-
-        NodeList nodeList = doc.getElementsByTagName("user");
-
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element element = (Element) node;
-                String existingUsername = element.getElementsByTagName("username").item(0).getTextContent();
-
-                if (existingUsername.equals(currentUser.getName())) {
-                    NodeList contacts = element.getElementsByTagName("contacts");
-                    if (contacts.getLength() > 0) {
-                        NodeList contactList = contacts.item(0).getChildNodes();
-                        for (int j = 0; j < contactList.getLength(); j++) {
-                            Node contactNode = contactList.item(j);
-                            if (contactNode.getNodeType() == Node.ELEMENT_NODE) {
-                                Element contactElement = (Element) contactNode;
-                                String contactUsername = contactElement.getTextContent();
-                                if (contactUsername.equals(username)) {
-                                    return true;
-                                }
-                            }
-                        }
-                    }
-                }
+        User user = StreamingXmlReader.findUser(filePath, currentUser.getName(), false);
+        if (user == null) return false;
+
+        for (User contact : user.getContacts()) {
+            if (contact.getName().equals(username)) {
+                return true;
             }
         }
 
@@ -0,0 +1,251 @@
+package com.github.Frenadol.view;
+
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.FlightEvents;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of decoded, scaled and circle-clipped profile pictures.
+ * Pictures are decoded on a background thread, and the cache evicts the least recently used
+ * thumbnails once their pixels take more than a fixed number of bytes.
+ * Users without a picture, and pictures that cannot be decoded, are remembered too,
+ * so table cells do not ask for them again on every update.
+ */
+public class AvatarCache {
+
+    private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    private static final Logger logger = Logger.getLogger(AvatarCache.class.getName());
+
+    private static AvatarCache instance;
+
+    private final long maxBytes;
+    private long usedBytes;
+    private final LinkedHashMap<String, Image> thumbnails = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Image> placeholders = new HashMap<>();
+    private final Set<String> missing = new HashSet<>();
+    private final Map<String, List<Consumer<Image>>> pending = new HashMap<>();
+    private final ExecutorService decoder = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "avatar-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a cache that holds at most the given amount of pixel data.
+     *
+     * @param maxBytes the memory budget of the decoded thumbnails.
+     */
+    public AvatarCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the avatar cache shared by every screen.
+     *
+     * @return the shared AvatarCache instance.
+     */
+    public static synchronized AvatarCache getInstance() {
+        if (instance == null) {
+            instance = new AvatarCache(DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the thumbnail of a user if it is already decoded.
+     *
+     * @param user the user.
+     * @param size the width and height of the thumbnail.
+     * @return the thumbnail, or null if it still has to be decoded.
+     */
+    public synchronized Image getIfPresent(User user, int size) {
+        return thumbnails.get(keyOf(user, size));
+    }
+
+    /**
+     * Delivers the thumbnail of a user on the FX thread, decoding it in the background if needed.
+     * Concurrent requests for the same thumbnail share a single decode.
+     *
+     * @param user the user.
+     * @param size the width and height of the thumbnail.
+     * @param onReady receives the thumbnail on the FX thread; not called if the user has no picture.
+     */
+    public void request(User user, int size, Consumer<Image> onReady) {
+        String key = keyOf(user, size);
+        synchronized (this) {
+            Image cached = thumbnails.get(key);
+            if (cached != null) {
+                Platform.runLater(() -> onReady.accept(cached));
+                return;
+            }
+            if (missing.contains(key)) {
+                return;
+            }
+            List<Consumer<Image>> waiting = pending.get(key);
+            if (waiting != null) {
+                waiting.add(onReady);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(onReady);
+            pending.put(key, waiting);
+        }
+
+        decoder.execute(() -> {
+            Image thumbnail = null;
+            try {
+                byte[] data = user.getProfileImage();
+                if (data != null && data.length > 0) {
+                    thumbnail = decode(data, size);
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Cannot decode the profile picture of " + user.getName(), e);
+            }
+
+            List<Consumer<Image>> waiting;
+            synchronized (this) {
+                waiting = pending.remove(key);
+                if (thumbnail != null) {
+                    put(key, thumbnail);
+                } else {
+                    missing.add(key);
+                }
+            }
+            if (thumbnail != null) {
+                Image ready = thumbnail;
+                Platform.runLater(() -> waiting.forEach(consumer -> consumer.accept(ready)));
+            }
+        });
+    }
+
+    /**
+     * Decodes the thumbnail of a user on the calling thread unless it is already cached, and keeps it in the cache.
+     * Meant for warming the cache while the splash screen is up, when nobody waits for the result on the FX thread.
+     *
+     * @param user the user.
+     * @param size the width and height of the thumbnail.
+     * @return the thumbnail, or null if the user has no picture.
+     */
+    public Image load(User user, int size) {
+        String key = keyOf(user, size);
+        synchronized (this) {
+            Image cached = thumbnails.get(key);
+            if (cached != null || missing.contains(key)) {
+                return cached;
+            }
+        }
+        byte[] data = user.getProfileImage();
+        Image thumbnail = data == null || data.length == 0 ? null : decode(data, size);
+        synchronized (this) {
+            if (thumbnail != null) {
+                put(key, thumbnail);
+            } else {
+                missing.add(key);
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Returns a neutral grey circle shown while a thumbnail is being decoded.
+     *
+     * @param size the width and height of the placeholder.
+     * @return the placeholder image.
+     */
+    public synchronized Image placeholder(int size) {
+        return placeholders.computeIfAbsent(String.valueOf(size), key -> {
+            WritableImage image = new WritableImage(size, size);
+            PixelWriter writer = image.getPixelWriter();
+            double radius = size / 2.0;
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (insideCircle(x, y, radius)) {
+                        writer.setColor(x, y, Color.LIGHTGRAY);
+                    }
+                }
+            }
+            return image;
+        });
+    }
+
+    private void put(String key, Image thumbnail) {
+        Image previous = thumbnails.put(key, thumbnail);
+        if (previous != null) {
+            usedBytes -= bytesOf(previous);
+        }
+        usedBytes += bytesOf(thumbnail);
+
+        Iterator<Image> eldest = thumbnails.values().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            usedBytes -= bytesOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Decodes the picture scaled down to the thumbnail size and makes every pixel outside the circle transparent.
+     */
+    private static Image decode(byte[] data, int size) {
+        FlightEvents.AvatarDecode event = new FlightEvents.AvatarDecode();
+        event.begin();
+        event.bytesRead = data.length;
+        event.size = size;
+        Image scaled = new Image(new ByteArrayInputStream(data), size, size, false, true);
+        int width = (int) scaled.getWidth();
+        int height = (int) scaled.getHeight();
+        if (width == 0 || height == 0) {
+            event.commit();
+            return null;
+        }
+
+        PixelReader reader = scaled.getPixelReader();
+        WritableImage clipped = new WritableImage(width, height);
+        PixelWriter writer = clipped.getPixelWriter();
+        double radius = Math.min(width, height) / 2.0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (insideCircle(x, y, radius)) {
+                    writer.setArgb(x, y, reader.getArgb(x, y));
+                }
+            }
+        }
+        event.decoded = true;
+        event.commit();
+        return clipped;
+    }
+
+    private static boolean insideCircle(int x, int y, double radius) {
+        double dx = x + 0.5 - radius;
+        double dy = y + 0.5 - radius;
+        return dx * dx + dy * dy <= radius * radius;
+    }
+
+    private static long bytesOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    private static String keyOf(User user, int size) {
+        String id = user.getProfileImageHash() != null ? user.getProfileImageHash() : user.getName();
+        return id + "@" + size;
+    }
+}
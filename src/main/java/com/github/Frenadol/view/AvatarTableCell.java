@@ -0,0 +1,55 @@
+package com.github.Frenadol.view;
+
+import com.github.Frenadol.model.User;
+import javafx.scene.control.TableCell;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+public class AvatarTableCell extends TableCell<User, User> {
+    private final ImageView imageView;
+    private final int size;
+
+    /**
+     * Constructs an AvatarTableCell that shows profile pictures from the {@link AvatarCache}.
+     * The image view is created once and reused while the cell is recycled.
+     *
+     * @param size the width and height of the thumbnails.
+     */
+    public AvatarTableCell(int size) {
+        super();
+        this.size = size;
+        imageView = new ImageView();
+        imageView.setFitWidth(size);
+        imageView.setFitHeight(size);
+    }
+
+    /**
+     * Shows the thumbnail of the user if it is decoded, or a placeholder until it is.
+     *
+     * @param user  the user whose picture is displayed.
+     * @param empty indicates whether the cell is empty or not.
+     */
+    @Override
+    protected void updateItem(User user, boolean empty) {
+        super.updateItem(user, empty);
+        if (user == null || empty) {
+            imageView.setImage(null);
+            setGraphic(null);
+            return;
+        }
+
+        AvatarCache cache = AvatarCache.getInstance();
+        Image thumbnail = cache.getIfPresent(user, size);
+        if (thumbnail != null) {
+            imageView.setImage(thumbnail);
+        } else {
+            imageView.setImage(cache.placeholder(size));
+            cache.request(user, size, image -> {
+                if (user.equals(getItem())) {
+                    imageView.setImage(image);
+                }
+            });
+        }
+        setGraphic(imageView);
+    }
+}
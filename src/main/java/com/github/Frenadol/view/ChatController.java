@@ -2,76 +2,109 @@ package com.github.Frenadol.view;
 
 import com.github.Frenadol.model.User;
 import com.github.Frenadol.model.Message;
-import com.github.Frenadol.utils.XmlReader;
+import com.github.Frenadol.utils.AsyncStore;
+import com.github.Frenadol.utils.ChatClient;
+import com.github.Frenadol.utils.ConversationExporter;
+import com.github.Frenadol.utils.FlightEvents;
+import com.github.Frenadol.utils.LogTailer;
+import com.github.Frenadol.utils.MessageLog;
+import com.github.Frenadol.utils.Metrics;
 import com.github.Frenadol.utils.SessionManager;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.net.URL;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ChatController implements Initializable {
+public class ChatController implements Initializable, RefreshableView {
     @FXML
     private VBox VboxChat;
     @FXML
-    private ListView<String> messageList;
+    private ListView<Message> messageList;
     @FXML
     private TextField messageField;
     @FXML
     private Button sendButton;
+    @FXML
+    private TextField searchField;
+    @FXML
+    private Button searchButton;
+    @FXML
+    private Button exportButton;
+    @FXML
+    private ProgressBar exportProgress;
 
     private User currentUser;
     private User selectedUser;
-
-    private static final String filePathChat = "ChatData.xml";
-    private static final String filePathChatTxt = "ChatData.txt";
+    private ChatClient chatClient;
+    private ConversationExporter exportTask;
+
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_LOADED_PAGES = 3;
+    private static final double SCROLL_THRESHOLD = 0.05;
+    private static final int SEARCH_LIMIT = 500;
+    private static final int REMEMBERED_POSITIONS = 1024;
+    private static final long MIN_RECONNECT_DELAY = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RECONNECT_DELAY = TimeUnit.MINUTES.toNanos(1);
+
+    private int conversationSize;
+    private int firstLoaded;
+    private int lastLoaded;
+    private boolean loadingPage;
+    private boolean searching;
+    private int shown;
+    private boolean connecting;
+    private long reconnectDelay = MIN_RECONNECT_DELAY;
+    private long nextConnectAttempt;
+    private FlightEvents.ChatOpen openEvent;
+    private final Set<Message> pendingMessages = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Long> shownPositions = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > REMEMBERED_POSITIONS;
+        }
+    });
 
     private static final Logger logger = Logger.getLogger(ChatController.class.getName());
 
+    private static final Metrics.Histogram sendLatency = Metrics.getInstance().histogram(
+            "chattot_message_send_seconds", "Time from sending a message until it is stored");
+    private static final Metrics.Counter sent = Metrics.getInstance().counter(
+            "chattot_messages_sent_total", "Messages sent from the chat screen");
+    private static final Metrics.Counter sendFailures = Metrics.getInstance().counter(
+            "chattot_message_send_failures_total", "Messages that could not be stored");
+
     SessionManager sessionManager = SessionManager.getInstance();
 
     /**
      * Initializes the controller.
-     * This method is called when the view is loaded.
-     * It sets up the current user, selected user, and displays messages.
+     * This method is called once, when the view is loaded. It sets up the message list and the
+     * handlers of the controls; the conversation itself is opened in {@link #onShow()}.
      *
      * @param url the URL of the FXML resource.
      * @param resourceBundle the resource bundle associated with the view.
      */
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
-        currentUser = sessionManager.getCurrentUser();
-        selectedUser = sessionManager.getSelectedUser();
-
-        logger.log(Level.INFO, "Current User: {0}", currentUser);
-        logger.log(Level.INFO, "Selected User: {0}", selectedUser);
-        messageList.setCellFactory(listView -> new MessageListCell());
-
-        if (selectedUser != null) {
-            displayMessages();
-        } else {
-            showAlert("Error", "No se ha seleccionado un usuario", "Por favor, selecciona un usuario con el que chatear.");
-        }
+        messageList.skinProperty().addListener((observable, oldSkin, newSkin) -> watchScrolling());
 
         sendButton.setOnAction(event -> {
             if (selectedUser != null) {
@@ -90,166 +123,553 @@ public class ChatController implements Initializable {
                     break;
             }
         });
+
+        searchField.setOnKeyPressed(event -> {
+            switch (event.getCode()) {
+                case ENTER:
+                    searchMessages();
+                    break;
+                case ESCAPE:
+                    searchField.clear();
+                    break;
+                default:
+                    break;
+            }
+        });
+        searchField.textProperty().addListener((observable, oldText, newText) -> {
+            if (searching && newText.trim().isEmpty()) {
+                closeSearch();
+            }
+        });
+    }
+
+    /**
+     * Opens the conversation between the current user and the selected user.
+     * Called every time a chat is opened; the list, the search and the pages loaded for the
+     * previous conversation are dropped, and results still on their way for it are ignored.
+     * The time until the newest page is shown is recorded as a {@link FlightEvents.ChatOpen} event.
+     */
+    @Override
+    public void onShow() {
+        openEvent = new FlightEvents.ChatOpen();
+        openEvent.begin();
+        User previousUser = currentUser;
+        currentUser = sessionManager.getCurrentUser();
+        selectedUser = sessionManager.getSelectedUser();
+
+        logger.log(Level.INFO, "Current User: {0}", currentUser);
+        logger.log(Level.INFO, "Selected User: {0}", selectedUser);
+        if (previousUser == null || !previousUser.equals(currentUser)) {
+            User owner = currentUser;
+            messageList.setCellFactory(listView -> new MessageListCell(owner, pendingMessages::contains));
+        }
+
+        shown++;
+        searching = false;
+        loadingPage = false;
+        searchField.clear();
+        messageField.clear();
+        messageList.getItems().clear();
+        conversationSize = 0;
+        firstLoaded = 0;
+        lastLoaded = 0;
+
+        if (selectedUser != null) {
+            displayMessages();
+            followLog();
+            reconnectDelay = MIN_RECONNECT_DELAY;
+            nextConnectAttempt = System.nanoTime();
+            connectToServer();
+        } else {
+            showAlert("Error", "No se ha seleccionado un usuario", "Por favor, selecciona un usuario con el que chatear.");
+        }
+    }
+
+    /**
+     * Connects the current user to the chat server, so messages sent from other instances show up right away.
+     * Without a server, messages are still stored, but only show up when the conversation is opened again.
+     * After a failed attempt the next one waits twice as long, up to a minute, and only one attempt runs at a time.
+     */
+    private void connectToServer() {
+        if (connecting) {
+            return;
+        }
+        connecting = true;
+        String userName = currentUser.getName();
+        String credential = currentUser.getPassword();
+        ChatClient.setListener((message, position) -> AsyncStore.FX.execute(() -> onStored(message, position)));
+        AsyncStore.supply(() -> ChatClient.connect(userName, credential))
+                .whenCompleteAsync((client, error) -> {
+                    connecting = false;
+                    if (error != null) {
+                        logger.log(Level.WARNING, "Chat server not available", AsyncStore.unwrap(error));
+                        nextConnectAttempt = System.nanoTime() + reconnectDelay;
+                        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+                    } else {
+                        chatClient = client;
+                        reconnectDelay = MIN_RECONNECT_DELAY;
+                    }
+                }, AsyncStore.FX);
+    }
+
+    /**
+     * Tries to connect to the chat server again, unless the last attempt failed too recently.
+     */
+    private void reconnectIfDue() {
+        if (System.nanoTime() - nextConnectAttempt >= 0) {
+            connectToServer();
+        }
+    }
+
+    /**
+     * Follows the message log, so messages other instances store without the chat server show up too.
+     */
+    private void followLog() {
+        AsyncStore.supply(LogTailer::getInstance).whenComplete((tailer, error) -> {
+            if (error != null) {
+                logger.log(Level.WARNING, "Cannot follow the message log", AsyncStore.unwrap(error));
+            } else {
+                tailer.setListener((message, position) -> AsyncStore.FX.execute(() -> onStored(message, position)));
+            }
+        });
+    }
+
+    /**
+     * Shows a message stored by another instance if it belongs to the open conversation.
+     * The same message may be reported both by the chat server and by the log tailer; it is only shown once.
+     * A message this view sent itself is already on screen as pending.
+     * Incoming messages are marked as read while the chat is on screen, also when they are reported
+     * a second time, since only then may the conversation summaries have caught up with them.
+     *
+     * @param message the stored message.
+     * @param position the position of the message in the log.
+     */
+    private void onStored(Message message, long position) {
+        boolean firstReport = shownPositions.add(position);
+        String sender = message.getSender().getName();
+        String receiver = message.getReceiver().getName();
+        boolean incoming = sender.equals(selectedUser.getName()) && receiver.equals(currentUser.getName());
+        boolean outgoing = sender.equals(currentUser.getName()) && receiver.equals(selectedUser.getName());
+        if (incoming && messageList.getScene() != null) {
+            markRead();
+        }
+        if (!firstReport || (!incoming && !outgoing)) {
+            return;
+        }
+        for (Message pending : pendingMessages) {
+            if (isSameMessage(pending, message)) {
+                return;
+            }
+        }
+        if (searching) {
+            conversationSize++;
+        } else {
+            showNewMessage(message);
+        }
+    }
+
+    /**
+     * Moves the read watermark of the current user in the conversation summaries to the newest received
+     * message, on the I/O executor. Opening the chat from the main menu already marked it as read.
+     */
+    private void markRead() {
+        String userName = currentUser.getName();
+        String contactName = selectedUser.getName();
+        AsyncStore.run(() -> MessageLog.getInstance().markRead(userName, contactName))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        logger.log(Level.WARNING, "Cannot mark the conversation as read", AsyncStore.unwrap(error));
+                    }
+                });
+    }
+
+    /**
+     * Compares a message as it was sent with the same message read back from the log,
+     * whose timestamp only keeps microseconds.
+     */
+    private static boolean isSameMessage(Message sent, Message stored) {
+        return sent.getSender().getName().equals(stored.getSender().getName())
+                && sent.getReceiver().getName().equals(stored.getReceiver().getName())
+                && sent.getContent().equals(stored.getContent())
+                && sent.getTimestamp().truncatedTo(ChronoUnit.MICROS).equals(stored.getTimestamp());
     }
 
     /**
      * Displays messages in the message list.
-     * It loads messages from the XML file and shows them in the UI.
+     * Only the most recent page of the conversation is loaded; older pages are loaded
+     * while scrolling up and pages far from the visible ones are released.
      */
     @FXML
     private void displayMessages() {
-        try {
-            List<Message> messages = XmlReader.getMessagesFromXML(filePathChat);
-
-            for (Message message : messages) {
-                if (message.getSender().equals(currentUser) && message.getReceiver().equals(selectedUser)) {
-                    messageList.getItems().add("Para " + selectedUser.getName() + ": " + message.getContent());
-                } else if ((message.getSender().equals(selectedUser) && message.getReceiver().equals(currentUser))) {
-                    messageList.getItems().add("De " + selectedUser.getName() + ": " + message.getContent());
-                }
+        loadingPage = true;
+        String userA = currentUser.getName();
+        String userB = selectedUser.getName();
+        int conversation = shown;
+
+        AsyncStore.supply(() -> MessageLog.getInstance().getConversationIndex().size(userA, userB))
+                .whenCompleteAsync((size, error) -> {
+                    if (conversation != shown) {
+                        return;
+                    }
+                    if (error != null) {
+                        loadingPage = false;
+                        Throwable cause = AsyncStore.unwrap(error);
+                        logger.log(Level.SEVERE, "Error loading messages", cause);
+                        showAlert("Error al cargar mensajes", "No se pudieron cargar los mensajes", cause.getMessage());
+                        return;
+                    }
+                    conversationSize = size;
+                    showNewestPage();
+                }, AsyncStore.FX);
+    }
+
+    /**
+     * Loads the most recent page of the conversation, once its size is known.
+     */
+    private void showNewestPage() {
+        int from = Math.max(0, conversationSize - PAGE_SIZE);
+        int to = conversationSize;
+        loadPage(from, to, page -> {
+            messageList.getItems().setAll(page);
+            firstLoaded = from;
+            lastLoaded = to;
+            messageList.scrollTo(page.size() - 1);
+            if (openEvent != null) {
+                openEvent.conversationSize = conversationSize;
+                openEvent.messagesLoaded = page.size();
+                openEvent.commit();
+                openEvent = null;
             }
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Error loading messages", e);
-            showAlert("Error al cargar mensajes", "No se pudieron cargar los mensajes", e.getMessage());
-        }
+        });
     }
 
     /**
-     * Adds a new message to the XML file.
+     * Reads a slice of the conversation on the I/O executor and hands it to the FX thread.
      *
-     * @param newMessage the message to be added.
-     * @param xmlFile the XML file where the message will be stored.
-     * @throws ParserConfigurationException if there is an issue with the parser configuration.
-     * @throws TransformerException if there is an issue transforming the document.
-     * @throws IOException if there is an issue reading/writing the file.
-     * @throws org.xml.sax.SAXException if there is an issue with the XML structure.
+     * @param from the index of the first message, inclusive.
+     * @param to the index of the last message, exclusive.
+     * @param onLoaded receives the loaded messages on the FX thread.
      */
-    private void addMessageToXML(Message newMessage, File xmlFile)
-            throws ParserConfigurationException, TransformerException, IOException, org.xml.sax.SAXException {
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-        Document doc;
-
-        if (xmlFile.exists()) {
-            doc = docBuilder.parse(xmlFile);
-        } else {
-            doc = docBuilder.newDocument();
-            Element rootElement = doc.createElement("messages");
-            doc.appendChild(rootElement);
-        }
+    private void loadPage(int from, int to, Consumer<List<Message>> onLoaded) {
+        loadingPage = true;
+        String userA = currentUser.getName();
+        String userB = selectedUser.getName();
 
-        Element rootElement = doc.getDocumentElement();
+        int conversation = shown;
 
-        Element messageElement = doc.createElement("message");
-        rootElement.appendChild(messageElement);
+        AsyncStore.supply(() -> MessageLog.getInstance().readConversation(userA, userB, from, to))
+                .whenCompleteAsync((page, error) -> {
+                    if (conversation != shown) {
+                        return;
+                    }
+                    loadingPage = false;
+                    if (error != null) {
+                        Throwable cause = AsyncStore.unwrap(error);
+                        logger.log(Level.SEVERE, "Error loading messages", cause);
+                        showAlert("Error al cargar mensajes", "No se pudieron cargar los mensajes", cause.getMessage());
+                    } else {
+                        onLoaded.accept(page);
+                    }
+                }, AsyncStore.FX);
+    }
 
-        Element senderElement = doc.createElement("sender");
-        senderElement.appendChild(doc.createTextNode(newMessage.getSender().getName()));
-        messageElement.appendChild(senderElement);
+    /**
+     * Listens to the vertical scroll bar of the message list to load pages near its ends.
+     */
+    private void watchScrolling() {
+        for (Node node : messageList.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                ScrollBar scrollBar = (ScrollBar) node;
+                scrollBar.valueProperty().addListener((observable, oldValue, newValue) -> onScrolled(scrollBar));
+            }
+        }
+    }
 
-        Element receiverElement = doc.createElement("receiver");
-        receiverElement.appendChild(doc.createTextNode(newMessage.getReceiver().getName()));
-        messageElement.appendChild(receiverElement);
+    private void onScrolled(ScrollBar scrollBar) {
+        if (loadingPage || searching) {
+            return;
+        }
+        double margin = (scrollBar.getMax() - scrollBar.getMin()) * SCROLL_THRESHOLD;
+        if (scrollBar.getValue() <= scrollBar.getMin() + margin && firstLoaded > 0) {
+            loadOlderPage();
+        } else if (scrollBar.getValue() >= scrollBar.getMax() - margin && lastLoaded < conversationSize) {
+            loadNewerPage();
+        }
+    }
 
-        Element contentElement = doc.createElement("content");
-        contentElement.appendChild(doc.createTextNode(newMessage.getContent()));
-        messageElement.appendChild(contentElement);
+    private void loadOlderPage() {
+        int to = firstLoaded;
+        int from = Math.max(0, to - PAGE_SIZE);
+        loadPage(from, to, page -> {
+            messageList.getItems().addAll(0, page);
+            firstLoaded = from;
+            int excess = messageList.getItems().size() - MAX_LOADED_PAGES * PAGE_SIZE;
+            if (excess > 0) {
+                messageList.getItems().remove(messageList.getItems().size() - excess, messageList.getItems().size());
+                lastLoaded -= excess;
+            }
+            messageList.scrollTo(page.size());
+        });
+    }
 
-        Element timestampElement = doc.createElement("timestamp");
-        timestampElement.appendChild(doc.createTextNode(newMessage.getTimestamp().toString()));
-        messageElement.appendChild(timestampElement);
+    private void loadNewerPage() {
+        int from = lastLoaded;
+        int to = Math.min(conversationSize, from + PAGE_SIZE);
+        loadPage(from, to, page -> {
+            int visible = messageList.getItems().size() - 1;
+            messageList.getItems().addAll(page);
+            lastLoaded = to;
+            int excess = messageList.getItems().size() - MAX_LOADED_PAGES * PAGE_SIZE;
+            if (excess > 0) {
+                messageList.getItems().remove(0, excess);
+                firstLoaded += excess;
+                visible -= excess;
+            }
+            messageList.scrollTo(Math.max(0, visible));
+        });
+    }
 
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        DOMSource source = new DOMSource(doc);
-        StreamResult result = new StreamResult(xmlFile);
+    /**
+     * Searches the conversation with the selected user through the search index
+     * and shows the newest matches in place of the conversation.
+     * Clearing the search field goes back to the conversation.
+     */
+    @FXML
+    private void searchMessages() {
+        String query = searchField.getText();
+        if (selectedUser == null || query == null || query.trim().isEmpty()) {
+            return;
+        }
+
+        String userA = currentUser.getName();
+        String userB = selectedUser.getName();
+        int conversation = shown;
+        searchButton.setDisable(true);
+        AsyncStore.supply(() -> MessageLog.getInstance().search(query, userA, userB, null, null, SEARCH_LIMIT))
+                .whenCompleteAsync((results, error) -> {
+                    searchButton.setDisable(false);
+                    if (conversation != shown) {
+                        return;
+                    }
+                    if (error != null) {
+                        Throwable cause = AsyncStore.unwrap(error);
+                        logger.log(Level.SEVERE, "Error searching messages", cause);
+                        showAlert("Error al buscar", "No se pudo realizar la búsqueda", cause.getMessage());
+                    } else if (results.isEmpty()) {
+                        showAlert("Búsqueda", "Sin resultados", "No hay mensajes que contengan \"" + query.trim() + "\".");
+                    } else {
+                        searching = true;
+                        firstLoaded = 0;
+                        lastLoaded = -1;
+                        messageList.getItems().setAll(results);
+                        messageList.scrollTo(results.size() - 1);
+                    }
+                }, AsyncStore.FX);
+    }
 
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.transform(source, result);
+    /**
+     * Leaves the search results and shows the newest page of the conversation again.
+     */
+    private void closeSearch() {
+        searching = false;
+        displayMessages();
     }
 
     /**
-     * Adds a new message to the text file.
+     * Shows a message that was just sent or received, if the newest page is the one loaded.
+     * Otherwise the list jumps back to the newest page, followed by the message, which may not be stored yet.
      *
-     * @param newMessage the message to be added.
-     * @param txtFile the text file where the message will be stored.
-     * @throws IOException if there is an issue reading/writing the file.
+     * @param message the new message.
      */
-    private void addMessageToTxt(Message newMessage, File txtFile) throws IOException {
-        try (FileWriter writer = new FileWriter(txtFile, true)) {
-            writer.write("[" + newMessage.getTimestamp() + "] " + newMessage.getSender().getName() +
-                    " a " + newMessage.getReceiver().getName() + ": " + newMessage.getContent() + "\n");
+    private void showNewMessage(Message message) {
+        conversationSize++;
+        if (lastLoaded != conversationSize - 1 || loadingPage) {
+            int to = conversationSize - 1;
+            int from = Math.max(0, to - PAGE_SIZE);
+            loadPage(from, to, page -> {
+                messageList.getItems().setAll(page);
+                messageList.getItems().add(message);
+                firstLoaded = from;
+                lastLoaded = to + 1;
+                messageList.scrollTo(page.size());
+            });
+            return;
+        }
+
+        messageList.getItems().add(message);
+        lastLoaded++;
+        int excess = messageList.getItems().size() - MAX_LOADED_PAGES * PAGE_SIZE;
+        if (excess > 0) {
+            messageList.getItems().remove(0, excess);
+            firstLoaded += excess;
         }
+        messageList.scrollTo(messageList.getItems().size() - 1);
     }
 
     /**
      * Sends a message to the selected user.
-     * Creates a new Message object and saves it to the XML and text files.
+     * The message is shown right away as pending and sent to the chat server, which stores it and delivers it
+     * to the other instances. Without a connection it is handed to the local group commit writer instead.
+     * Once the write is confirmed the message stops being shown as pending.
+     * The time until then is recorded in the send latency metric and as a {@link FlightEvents.MessageSend} event.
      */
     @FXML
     private void sendMessage() {
         String content = messageField.getText();
 
         if (content != null && !content.isEmpty() && selectedUser != null) {
+            if (searching) {
+                searching = false;
+                searchField.clear();
+            }
+            long start = System.nanoTime();
+            FlightEvents.MessageSend event = new FlightEvents.MessageSend();
+            event.begin();
             Message newMessage = new Message(currentUser, selectedUser, content, LocalDateTime.now());
-
-            try {
-                addMessageToXML(newMessage, new File(filePathChat));
-                addMessageToTxt(newMessage, new File(filePathChatTxt));
-                messageList.getItems().add("A " + selectedUser.getName() + ": " + content);
-                messageField.clear();
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Error sending message", e);
-                showAlert("Error al enviar el mensaje", "No se pudo enviar el mensaje", e.getMessage());
+            pendingMessages.add(newMessage);
+            showNewMessage(newMessage);
+            messageField.clear();
+            int conversation = shown;
+
+            boolean viaServer = chatClient != null && chatClient.isOpen();
+            CompletableFuture<Long> stored = viaServer
+                    ? chatClient.send(newMessage)
+                    : AsyncStore.appendMessage(newMessage);
+            if (!viaServer) {
+                reconnectIfDue();
             }
+            stored.whenCompleteAsync((position, error) -> {
+                pendingMessages.remove(newMessage);
+                sendLatency.recordSince(start);
+                if (error != null) {
+                    sendFailures.increment();
+                } else {
+                    sent.increment();
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.contentLength = content.length();
+                    event.conversationSize = conversationSize;
+                    event.viaServer = viaServer;
+                    event.succeeded = error == null;
+                    event.commit();
+                }
+                if (error != null) {
+                    Throwable cause = AsyncStore.unwrap(error);
+                    logger.log(Level.SEVERE, "Error sending message", cause);
+                    if (messageList.getItems().remove(newMessage)) {
+                        conversationSize--;
+                        lastLoaded--;
+                    }
+                    if (conversation == shown && messageField.getText().isEmpty()) {
+                        messageField.setText(content);
+                    }
+                    showAlert("Error al enviar el mensaje", "No se pudo enviar el mensaje", cause.getMessage());
+                } else {
+                    shownPositions.add(position);
+                    messageList.refresh();
+                }
+            }, AsyncStore.FX);
         } else {
             showAlert("Información", "No se ha seleccionado un usuario", "Por favor, selecciona un usuario antes de enviar un mensaje.");
         }
     }
 
     /**
-     * Exports the conversation with the selected user to a text file.
+     * Exports the conversation with the selected user to a file, or cancels the export that is running.
+     * The format follows the filter chosen in the dialog: plain text or JSON Lines, optionally gzip-compressed.
+     * The conversation is streamed to the file by a {@link ConversationExporter} on a background thread
+     * while the progress bar shows how far it got.
      */
     @FXML
-    private void exportConversationToTXT() {
+    private void exportConversation() {
+        if (exportTask != null) {
+            exportTask.cancel();
+            return;
+        }
         if (selectedUser == null) {
             showAlert("Error", "No se ha seleccionado un usuario", "Por favor, selecciona un usuario para exportar la conversación.");
             return;
         }
 
-        try {
-            List<Message> allMessages = XmlReader.getMessagesFromXML(filePathChat);
-            List<Message> conversation = new ArrayList<>();
-
-            for (Message message : allMessages) {
-                if ((message.getSender().equals(currentUser) && message.getReceiver().equals(selectedUser)) ||
-                        (message.getSender().equals(selectedUser) && message.getReceiver().equals(currentUser))) {
-                    conversation.add(message);
-                }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Guardar Conversación");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("Texto (*.txt)", "*.txt"),
+                new FileChooser.ExtensionFilter("JSON Lines (*.jsonl)", "*.jsonl"),
+                new FileChooser.ExtensionFilter("Texto comprimido (*.txt.gz)", "*.txt.gz"),
+                new FileChooser.ExtensionFilter("JSON Lines comprimido (*.jsonl.gz)", "*.jsonl.gz"));
+        File chosen = fileChooser.showSaveDialog(messageList.getScene().getWindow());
+        if (chosen == null) {
+            return;
+        }
+        File file = withExtension(chosen, fileChooser.getSelectedExtensionFilter());
+        String userA = currentUser.getName();
+        String userB = selectedUser.getName();
+
+        // Opening the log may still replay its indexes if the splash screen did not get to it.
+        exportButton.setDisable(true);
+        AsyncStore.supply(MessageLog::getInstance).whenCompleteAsync((log, error) -> {
+            exportButton.setDisable(false);
+            if (error != null) {
+                Throwable cause = AsyncStore.unwrap(error);
+                logger.log(Level.SEVERE, "Error exporting conversation", cause);
+                showAlert("Error al exportar la conversación", "No se pudo exportar la conversación", cause.getMessage());
+                return;
             }
+            startExport(ConversationExporter.forFile(log, userA, userB, file), file);
+        }, AsyncStore.FX);
+    }
 
-            FileChooser fileChooser = new FileChooser();
-            fileChooser.setTitle("Guardar Conversación");
-            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Texto (*.txt)", "*.txt"));
-            File file = fileChooser.showSaveDialog(messageList.getScene().getWindow());
-
-            if (file != null) {
-                try (FileOutputStream fos = new FileOutputStream(file);
-                     OutputStreamWriter osw = new OutputStreamWriter(fos);
-                     PrintWriter writer = new PrintWriter(osw)) {
-
-                    for (Message message : conversation) {
-                        writer.println("[" + message.getTimestamp() + "] " +
-                                message.getSender().getName() + " a " +
-                                message.getReceiver().getName() + ": " +
-                                message.getContent());
-                    }
-                }
+    /**
+     * Runs an export task on a background thread while the progress bar shows how far it got.
+     */
+    private void startExport(ConversationExporter task, File file) {
+        task.setOnSucceeded(event -> {
+            finishExport();
+            showAlert("Información", "Conversación exportada", task.getValue() + " mensajes exportados a " + file.getName());
+        });
+        task.setOnFailed(event -> {
+            finishExport();
+            logger.log(Level.SEVERE, "Error exporting conversation", task.getException());
+            showAlert("Error al exportar la conversación", "No se pudo exportar la conversación", task.getException().getMessage());
+        });
+        task.setOnCancelled(event -> finishExport());
+
+        exportTask = task;
+        exportProgress.progressProperty().bind(task.progressProperty());
+        exportProgress.setVisible(true);
+        exportProgress.setManaged(true);
+        exportButton.setText("Cancelar");
+
+        Thread thread = new Thread(task, "chattot-export");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds the extension of the chosen filter to a file name that has none of the export extensions,
+     * since not every platform does it in the save dialog.
+     */
+    private static File withExtension(File file, FileChooser.ExtensionFilter filter) {
+        String name = file.getName().toLowerCase();
+        for (ConversationExporter.Format format : ConversationExporter.Format.values()) {
+            if (name.endsWith(format.getExtension()) || name.endsWith(format.getExtension() + ConversationExporter.GZIP_EXTENSION)) {
+                return file;
             }
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Error exporting conversation", e);
-            showAlert("Error al exportar la conversación", "No se pudo exportar la conversación", e.getMessage());
         }
+        if (filter == null || filter.getExtensions().isEmpty()) {
+            return file;
+        }
+        return new File(file.getParentFile(), file.getName() + filter.getExtensions().get(0).substring(1));
+    }
+
+    private void finishExport() {
+        exportTask = null;
+        exportProgress.progressProperty().unbind();
+        exportProgress.setVisible(false);
+        exportProgress.setManaged(false);
+        exportButton.setText("Exportar");
     }
 
     /**
@@ -0,0 +1,81 @@
+package com.github.Frenadol.view;
+
+import com.github.Frenadol.model.ConversationSummary;
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.SessionManager;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Function;
+
+public class ContactSummaryCell extends TableCell<User, User> {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("dd/MM/yy");
+
+    private final Function<User, ConversationSummary> summaries;
+    private final Label nameLabel = new Label();
+    private final Label unreadLabel = new Label();
+    private final Label previewLabel = new Label();
+    private final VBox content;
+
+    /**
+     * Constructs a ContactSummaryCell that shows the name of a contact above the last message
+     * exchanged with them, with its time and the number of unread messages.
+     * The labels are created once and reused while the cell is recycled.
+     *
+     * @param summaries returns the summary of the conversation with a contact, or null if there is none.
+     */
+    public ContactSummaryCell(Function<User, ConversationSummary> summaries) {
+        super();
+        this.summaries = summaries;
+        nameLabel.setStyle("-fx-font-weight: bold;");
+        unreadLabel.setStyle("-fx-background-color: #2e7d32; -fx-text-fill: white; -fx-padding: 0 5 0 5; -fx-background-radius: 8;");
+        previewLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: #555555;");
+        HBox header = new HBox(5, nameLabel, unreadLabel);
+        HBox.setHgrow(nameLabel, Priority.ALWAYS);
+        content = new VBox(2, header, previewLabel);
+    }
+
+    /**
+     * Shows the contact and the summary of the conversation with them, if they ever talked.
+     *
+     * @param user  the contact.
+     * @param empty indicates whether the cell is empty or not.
+     */
+    @Override
+    protected void updateItem(User user, boolean empty) {
+        super.updateItem(user, empty);
+        if (user == null || empty) {
+            setGraphic(null);
+            return;
+        }
+
+        nameLabel.setText(user.getName());
+        ConversationSummary summary = summaries.apply(user);
+        if (summary == null) {
+            previewLabel.setText("Sin mensajes");
+            unreadLabel.setVisible(false);
+        } else {
+            User currentUser = SessionManager.getInstance().getCurrentUser();
+            boolean own = currentUser != null && summary.getLastSender().equals(currentUser.getName());
+            String sender = own ? "Tú: " : "";
+            previewLabel.setText(format(summary.getLastTimestamp()) + "  " + sender + summary.getPreview());
+            unreadLabel.setText(String.valueOf(summary.getUnreadCount()));
+            unreadLabel.setVisible(summary.getUnreadCount() > 0);
+        }
+        setGraphic(content);
+    }
+
+    /**
+     * Shows the time for messages of today and the date for older ones.
+     */
+    private static String format(LocalDateTime timestamp) {
+        return timestamp.toLocalDate().equals(LocalDate.now()) ? timestamp.format(TIME) : timestamp.format(DATE);
+    }
+}
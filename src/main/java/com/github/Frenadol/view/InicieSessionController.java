@@ -2,25 +2,31 @@ package com.github.Frenadol.view;
 
 import com.github.Frenadol.App;
 import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.AsyncStore;
+import com.github.Frenadol.utils.FlightEvents;
+import com.github.Frenadol.utils.Metrics;
 import com.github.Frenadol.utils.SessionManager;
+import com.github.Frenadol.utils.UserDirectory;
 import javafx.fxml.FXML;
+import javafx.scene.Cursor;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.PasswordField;
 import javafx.scene.control.TextField;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-public class InicieSessionController {
+public class InicieSessionController implements RefreshableView {
+    private static final Metrics.Histogram loginLatency = Metrics.getInstance().histogram(
+            "chattot_login_seconds", "Time from submitting the login form until the result is shown");
+    private static final Metrics.Counter attempts = Metrics.getInstance().counter(
+            "chattot_login_attempts_total", "Submitted login forms");
+    private static final Metrics.Counter rejections = Metrics.getInstance().counter(
+            "chattot_login_rejections_total", "Logins with a wrong user name or password");
+    private static final Metrics.Counter loginErrors = Metrics.getInstance().counter(
+            "chattot_login_errors_total", "Logins that failed because the credentials could not be read");
+
     @FXML
     private TextField textUsername;
     @FXML
@@ -30,10 +36,18 @@ public class InicieSessionController {
     @FXML
     private Button Back;
 
-    private static final String USERS_FILE = "UsersData.xml";
+    /**
+     * Clears the form, so credentials typed before are not shown again when coming back to the login screen.
+     */
+    @Override
+    public void onShow() {
+        textUsername.clear();
+        textPassword.clear();
+    }
 
     /**
      * Initiates user login by verifying the username and password.
+     * The verification runs on the I/O executor; the result is shown back on the FX thread.
      * Displays an alert if the login is successful or unsuccessful.
      */
     @FXML
@@ -47,62 +61,79 @@ public class InicieSessionController {
             return;
         }
 
-        try {
-            File xmlFile = new File(USERS_FILE);
-
-            if (isUserExists(username, pass, xmlFile)) {
-                String message = "Usuario iniciado sesión exitosamente.";
-                showAlert(message);
-                App.setRoot("MainMenu");
-            } else {
-                String message = "Nombre de usuario o contraseña incorrectos.";
-                showAlert(message);
+        setInProgress(true);
+        attempts.increment();
+        long start = System.nanoTime();
+
+        AsyncStore.supply(() -> isUserExists(username, pass)).whenCompleteAsync((exists, error) -> {
+            setInProgress(false);
+            loginLatency.recordSince(start);
+            if (error != null) {
+                loginErrors.increment();
+                showAlert("Error al iniciar sesión: " + AsyncStore.unwrap(error).getMessage());
+                return;
             }
 
-        } catch (Exception e) {
-            showAlert("Error al iniciar sesión: " + e.getMessage());
+            try {
+                if (exists) {
+                    String message = "Usuario iniciado sesión exitosamente.";
+                    showAlert(message);
+                    App.setRoot("MainMenu");
+                } else {
+                    rejections.increment();
+                    String message = "Nombre de usuario o contraseña incorrectos.";
+                    showAlert(message);
+                }
+            } catch (Exception e) {
+                showAlert("Error al iniciar sesión: " + e.getMessage());
+            }
+        }, AsyncStore.FX);
+    }
+
+    /**
+     * Shows whether a login check is running, so the user cannot start a second one meanwhile.
+     *
+     * @param inProgress true while the credentials are being verified.
+     */
+    private void setInProgress(boolean inProgress) {
+        UsersSession.setDisable(inProgress);
+        UsersSession.setText(inProgress ? "Iniciando..." : "Iniciar Sesion");
+        if (UsersSession.getScene() != null) {
+            UsersSession.getScene().setCursor(inProgress ? Cursor.WAIT : Cursor.DEFAULT);
         }
     }
 
     /**
-     * Checks if the user exists in the XML file with the provided username and password.
+     * Checks if a user with the provided username and password exists.
+     * Only the credential index is consulted; the users file is not read.
+     * The check is recorded as a {@link FlightEvents.LoginVerification} event.
      *
      * @param username the username to check.
      * @param password the password to check.
-     * @param xmlFile  the XML file containing user data.
      * @return true if the user exists and the password is correct; false otherwise.
-     * @throws Exception if an error occurs while reading the XML file.
+     * @throws Exception if an error occurs while reading the credential index.
      */
-    private boolean isUserExists(String username, String password, File xmlFile) throws Exception {
-        if (!xmlFile.exists()) return false;
-
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-        Document doc = dBuilder.parse(xmlFile);
-        doc.getDocumentElement().normalize();
-
-        NodeList nodeList = doc.getElementsByTagName("user");
-
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element element = (Element) node;
-                String existingUsername = element.getElementsByTagName("username").item(0).getTextContent();
-                String existingPasswordHash = element.getElementsByTagName("password").item(0).getTextContent();
+    private boolean isUserExists(String username, String password) throws Exception {
+        FlightEvents.LoginVerification event = new FlightEvents.LoginVerification();
+        event.begin();
+        try {
+            String storedHash = UserDirectory.getInstance().getCredentials().getPasswordHash(username);
+            event.userFound = storedHash != null;
 
-                if (existingUsername.equals(username) && checkPassword(password, existingPasswordHash)) {
-                    SessionManager sessionManager = SessionManager.getInstance();
-                    User userLogin = new User(username, existingPasswordHash.getBytes());
-                    sessionManager.setCurrentUser(userLogin);
-                    System.out.println(userLogin);
+            if (storedHash != null && checkPassword(password, storedHash)) {
+                SessionManager sessionManager = SessionManager.getInstance();
+                User userLogin = new User(username, storedHash.getBytes());
+                sessionManager.setCurrentUser(userLogin);
+                System.out.println(userLogin);
 
-                    return true;
-                }
+                event.succeeded = true;
+                return true;
             }
-        }
 
-        return false;
+            return false;
+        } finally {
+            event.commit();
+        }
     }
 
     /**
@@ -1,34 +1,43 @@
 package com.github.Frenadol.view;
 
 import com.github.Frenadol.App;
+import com.github.Frenadol.model.ConversationSummary;
 import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.AsyncStore;
+import com.github.Frenadol.utils.ConversationSummaries;
+import com.github.Frenadol.utils.MessageLog;
+import com.github.Frenadol.utils.Metrics;
 import com.github.Frenadol.utils.SessionManager;
-import com.github.Frenadol.utils.XmlReader;
-import javafx.beans.property.SimpleObjectProperty;
+import com.github.Frenadol.utils.UserDirectory;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
-import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.Pane;
-import javafx.scene.shape.Circle;
 import javafx.stage.FileChooser;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public class MainMenuController implements Initializable {
+public class MainMenuController implements Initializable, RefreshableView {
     @FXML
     private AnchorPane anchorPane;
     @FXML
@@ -38,16 +47,17 @@ public class MainMenuController implements Initializable {
     @FXML
     private TableColumn<User, String> nameUserColumn;
     @FXML
-    private TableColumn<User, ImageView> imageProfileColumn;
+    private TableColumn<User, User> imageProfileColumn;
     @FXML
     private Label NameUser;
     @FXML
     private TableView<User> contactsTable;
     @FXML
-    private TableColumn<User, String> contactNameColumn;
+    private TableColumn<User, User> contactNameColumn;
     @FXML
-    private TableColumn<User, ImageView> contactProfileColumn;
+    private TableColumn<User, User> contactProfileColumn;
     private ObservableList<User> contactList = FXCollections.observableArrayList();
+    private final Map<String, ConversationSummary> summaries = new HashMap<>();
     @FXML
     private Button addContactButton;
     @FXML
@@ -58,7 +68,15 @@ public class MainMenuController implements Initializable {
     private Pane Panel;
 
     private ObservableList<User> userList = FXCollections.observableArrayList();
-    String filePath = "UsersData.xml";
+    private int shown;
+    static final int AVATAR_SIZE = 100;
+
+    private static final Logger logger = Logger.getLogger(MainMenuController.class.getName());
+
+    private static final Metrics.Histogram loadLatency = Metrics.getInstance().histogram(
+            "chattot_main_menu_load_seconds", "Time to load the users, contacts and picture of the main menu");
+    private static final Metrics.Histogram chatLoadLatency = Metrics.getInstance().histogram(
+            "chattot_chat_load_seconds", "Time to show the chat screen for the selected contact");
 
     /**
      * Navigates back to the primary view.
@@ -70,8 +88,10 @@ public class MainMenuController implements Initializable {
     }
 
     /**
-     * Initializes the controller by loading the user list and the current user image.
-     * Sets up cell value factories for user tables and loads contacts for the current user.
+     * Initializes the controller by setting up the cell value factories of the user tables.
+     * The users, the contacts and the image of the current user are loaded in {@link #onShow()},
+     * since the view is kept across sessions.
+     * Profile pictures are taken from the shared {@link AvatarCache}, which decodes them in the background.
      *
      * @param url the location used to resolve relative paths for the root object,
      *            or null if the location is not known.
@@ -80,91 +100,89 @@ public class MainMenuController implements Initializable {
      */
     @Override
     public void initialize(URL url, ResourceBundle resources) {
-        ListUsers();
-        loadCurrentUserImage();
-
         nameUserColumn.setCellValueFactory(cellData -> new SimpleStringProperty(cellData.getValue().getName()));
-        imageProfileColumn.setCellValueFactory(cellData -> {
-            byte[] visualData = cellData.getValue().getProfileImage();
-            if (visualData != null && visualData.length > 0) {
-                ByteArrayInputStream bis = new ByteArrayInputStream(visualData);
-                Image image = new Image(bis);
-                ImageView imageView = new ImageView(image);
-                imageView.setFitWidth(120);
-                imageView.setFitHeight(100);
-                applyCircularClip(imageView);
-                return new SimpleObjectProperty<>(imageView);
-            } else {
-                ImageView imageView = new ImageView();
-                imageView.setFitWidth(120);
-                imageView.setFitHeight(100);
-                applyCircularClip(imageView);
-                return new SimpleObjectProperty<>(imageView);
-            }
-        });
-
-        contactNameColumn.setCellValueFactory(cellData -> new SimpleStringProperty(cellData.getValue().getName()));
-        contactProfileColumn.setCellValueFactory(cellData -> {
-            byte[] visualData = cellData.getValue().getProfileImage();
-            if (visualData != null && visualData.length > 0) {
-                ByteArrayInputStream bis = new ByteArrayInputStream(visualData);
-                Image image = new Image(bis);
-                ImageView imageView = new ImageView(image);
-                imageView.setFitWidth(120);
-                imageView.setFitHeight(120);
-                applyCircularClip(imageView);
-                return new SimpleObjectProperty<>(imageView);
-            } else {
-                ImageView imageView = new ImageView();
-                imageView.setFitWidth(120);
-                imageView.setFitHeight(100);
-                applyCircularClip(imageView);
-                return new SimpleObjectProperty<>(imageView);
-            }
-        });
+        imageProfileColumn.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue()));
+        imageProfileColumn.setCellFactory(column -> new AvatarTableCell(AVATAR_SIZE));
+
+        contactNameColumn.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue()));
+        contactNameColumn.setCellFactory(column -> new ContactSummaryCell(contact -> summaries.get(contact.getName())));
+        contactProfileColumn.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue()));
+        contactProfileColumn.setCellFactory(column -> new AvatarTableCell(AVATAR_SIZE));
+        contactsTable.setItems(contactList);
+    }
+
+    /**
+     * Closes the chat left open by a previous visit and loads the user list, the contacts and the image
+     * of the current user on the I/O executor. Results that arrive after the view was shown again are dropped.
+     */
+    @Override
+    public void onShow() {
+        long start = System.nanoTime();
+        shown++;
+        Panel.getChildren().clear();
+        contactList.clear();
+        summaries.clear();
+        userList = FXCollections.observableArrayList();
+        usersTable.setItems(userList);
+        userImage.setImage(null);
+        NameUser.setText("");
 
         User currentUser = SessionManager.getInstance().getCurrentUser();
+        CompletableFuture<?> users = ListUsers();
+        CompletableFuture<?> contacts = CompletableFuture.completedFuture(null);
         if (currentUser != null) {
             NameUser.setText(currentUser.getName());
-            loadContactsForCurrentUser();
+            contacts = loadContactsForCurrentUser(true);
         }
+        CompletableFuture.allOf(users, contacts).whenComplete((ignored, error) -> loadLatency.recordSince(start));
     }
 
     /**
-     * Loads users from the XML file and populates the users table,
-     * filtering out the current user and their contacts.
+     * Loads users from the user directory on the I/O executor and populates the users table,
+     * filtering out the current user and their contacts through the contact graph.
+     *
+     * @return a future completed once the table is filled.
      */
-    private void ListUsers() {
-        List<User> users = XmlReader.getUsersFromXML(filePath);
+    private CompletableFuture<?> ListUsers() {
         User currentUser = SessionManager.getInstance().getCurrentUser();
-        if (currentUser != null) {
-            List<User> contacts = currentUser.getContacts();
-            users.removeIf(user -> user.getName().equals(currentUser.getName()) || contacts.stream().anyMatch(contact -> contact.getName().equals(user.getName())));
-        }
-
-        this.userList = FXCollections.observableArrayList(users);
-        usersTable.setItems(userList);
+        int visit = shown;
+        return AsyncStore.supply(() -> {
+            UserDirectory directory = UserDirectory.getInstance();
+            return currentUser != null ? directory.getNonContacts(currentUser.getName()) : directory.getUsers();
+        }).whenCompleteAsync((users, error) -> {
+            if (visit != shown) {
+                return;
+            }
+            if (error != null) {
+                showAlert("No se pudieron cargar los usuarios: " + AsyncStore.unwrap(error).getMessage());
+                return;
+            }
+            this.userList = FXCollections.observableArrayList(users);
+            usersTable.setItems(userList);
+        }, AsyncStore.FX);
     }
 
     /**
-     * Loads the chat screen by initializing the Chat.fxml layout.
-     * Clears the current children of the Panel and adds the chat pane.
+     * Shows the chat screen in the Panel, loading Chat.fxml the first time only.
+     * Later chats reuse the same chat pane, which is refreshed for the selected contact.
      * Sets the preferred width and height of the chat pane to match the Panel's dimensions.
      * Displays an alert if an error occurs during loading.
      */
     @FXML
     private void loadChatScreen() {
+        long start = System.nanoTime();
         try {
-            FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/github/Frenadol/Chat.fxml"));
-            Pane chatPane = loader.load();
-            Panel.getChildren().clear();
-            Panel.getChildren().add(chatPane);
+            Pane chatPane = (Pane) ViewRegistry.getInstance().show("Chat");
+            if (!Panel.getChildren().contains(chatPane)) {
+                Panel.getChildren().setAll(chatPane);
+            }
 
             double paneWidth = Panel.getWidth();
             double paneHeight = Panel.getHeight();
 
             chatPane.setPrefWidth(paneWidth);
             chatPane.setPrefHeight(paneHeight);
+            chatLoadLatency.recordSince(start);
         } catch (IOException e) {
             showAlert("Ocurrió un error al cargar la pantalla de chat: " + e.getMessage());
         }
@@ -173,6 +191,7 @@ public class MainMenuController implements Initializable {
     /**
      * Confirms and adds the selected contact to the current user's contact list.
      * Displays a confirmation dialog before adding the contact.
+     * The users file is saved on the I/O executor while the add button is disabled.
      */
     @FXML
     private void confirmAndAddContact() {
@@ -204,117 +223,203 @@ public class MainMenuController implements Initializable {
         Optional<ButtonType> result = alert.showAndWait();
 
         if (result.isPresent() && result.get() == ButtonType.OK) {
-            currentUser.addContactToList(selectedContact);
-
-            List<User> users = XmlReader.getUsersFromXML(filePath);
-            for (User user : users) {
-                if (user.getName().equalsIgnoreCase(currentUser.getName())) {
-                    List<User> existingContacts = user.getContacts();
-                    if (!existingContacts.contains(selectedContact)) {
-                        existingContacts.add(selectedContact);
-                    }
-                    user.setContacts(existingContacts);
-                    break;
+            addContactButton.setDisable(true);
+            AsyncStore.addContact(currentUser.getName(), selectedContact).whenCompleteAsync((updatedContacts, error) -> {
+                addContactButton.setDisable(false);
+                if (error != null) {
+                    showAlert("No se pudo agregar el contacto: " + AsyncStore.unwrap(error).getMessage());
+                    return;
+                }
+                if (updatedContacts != null) {
+                    currentUser.setContacts(updatedContacts);
+                } else {
+                    currentUser.addContactToList(selectedContact);
                 }
-            }
-            XmlReader.saveUsersToXML(users, filePath);
-
-            Optional<User> updatedCurrentUser = users.stream()
-                    .filter(user -> user.getName().equals(currentUser.getName()))
-                    .findFirst();
-            updatedCurrentUser.ifPresent(user -> currentUser.setContacts(user.getContacts()));
 
-            showAlert("Contacto agregado exitosamente.");
-            loadContactsForCurrentUser();
-            userList.remove(selectedContact);
-            usersTable.setItems(userList);
+                showAlert("Contacto agregado exitosamente.");
+                loadContactsForCurrentUser(false);
+                userList.remove(selectedContact);
+                usersTable.setItems(userList);
+            }, AsyncStore.FX);
         }
     }
 
+    /**
+     * Looks up the current user on the I/O executor and populates the contacts table with their contacts,
+     * most recent conversation first.
+     *
+     * @param withImage whether the profile image of the current user is shown as well.
+     * @return a future completed once the contacts table is filled.
+     */
+    private CompletableFuture<?> loadContactsForCurrentUser(boolean withImage) {
+        User currentUser = SessionManager.getInstance().getCurrentUser();
+        if (currentUser == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int visit = shown;
+        return AsyncStore.findUser(currentUser.getName()).whenCompleteAsync((user, error) -> {
+            if (visit != shown) {
+                return;
+            }
+            if (error != null) {
+                showAlert("No se pudieron cargar los contactos: " + AsyncStore.unwrap(error).getMessage());
+                return;
+            }
+            if (user != null) {
+                currentUser.setContacts(new ArrayList<>(user.getContacts()));
 
-
+                contactList.setAll(user.getContacts());
+                refreshContactSummaries();
+                if (withImage) {
+                    loadCurrentUserImage(user);
+                }
+            }
+        }, AsyncStore.FX);
+    }
 
     /**
-     * Loads the contacts for the current user and populates the contacts table.
+     * Reads the summary of the conversation with every contact from the conversation summaries of the
+     * message log on the I/O executor, one lookup per contact, and sorts the contacts by the time of
+     * their last message. Contacts the user never talked to keep their order after the others.
      */
-    private void loadContactsForCurrentUser() {
+    private void refreshContactSummaries() {
         User currentUser = SessionManager.getInstance().getCurrentUser();
-        if (currentUser != null) {
-            List<User> users = XmlReader.getUsersFromXML(filePath);
-            for (User user : users) {
-                if (user.getName().equals(currentUser.getName())) {
-                    currentUser.setContacts(user.getContacts());
-
-                    contactList.clear();
-                    contactList.addAll(user.getContacts());
-                    contactsTable.setItems(contactList);
-                    break;
-                }
+        if (currentUser == null) {
+            return;
+        }
+        List<String> contactNames = new ArrayList<>(contactList.size());
+        for (User contact : contactList) {
+            contactNames.add(contact.getName());
+        }
+        int visit = shown;
+        AsyncStore.supply(() -> readSummaries(currentUser.getName(), contactNames)).whenCompleteAsync((read, error) -> {
+            if (visit != shown) {
+                return;
+            }
+            if (error != null) {
+                logger.log(Level.WARNING, "Cannot read the conversation summaries", AsyncStore.unwrap(error));
+                return;
+            }
+            summaries.clear();
+            summaries.putAll(read);
+            FXCollections.sort(contactList, Comparator.comparingLong((User contact) -> {
+                ConversationSummary summary = summaries.get(contact.getName());
+                return summary == null ? Long.MIN_VALUE : summary.getLastEpochMicros();
+            }).reversed());
+            contactsTable.refresh();
+        }, AsyncStore.FX);
+    }
+
+    /**
+     * Looks up the summary of the conversation of a user with each of the given contacts.
+     * Runs on the I/O executor, since the message log may have to be opened first.
+     *
+     * @return the summaries by contact name, leaving out the contacts the user never talked to.
+     */
+    private static Map<String, ConversationSummary> readSummaries(String userName, List<String> contactNames) {
+        ConversationSummaries conversations = MessageLog.getInstance().getConversationSummaries();
+        Map<String, ConversationSummary> read = new HashMap<>();
+        for (String contactName : contactNames) {
+            ConversationSummary summary = conversations.getSummary(userName, contactName);
+            if (summary != null) {
+                read.put(contactName, summary);
             }
         }
+        return read;
     }
 
     /**
      * Initiates a chat with the selected contact if they are mutually in each other's contact lists.
+     * Both directions are checked in the contact graph on the I/O executor, without loading either
+     * contact list, while the chat button is disabled.
      */
     @FXML
     private void chattedWithContact(){
         User selectedContact = contactsTable.getSelectionModel().getSelectedItem();
         User currentUser = SessionManager.getInstance().getCurrentUser();
 
-        if (selectedContact != null && currentUser != null) {
-            List<User> allUsers = XmlReader.getUsersFromXML(filePath);
-
-            User updatedSelectedContact = allUsers.stream().filter(user -> user.getName().equals(selectedContact.getName())).findFirst().orElse(null);
-            User updatedCurrentUser = allUsers.stream().filter(user -> user.getName().equals(currentUser.getName())).findFirst().orElse(null);
+        if (selectedContact == null || currentUser == null) {
+            showAlert("Por favor selecciona un contacto para chatear.");
+            return;
+        }
 
-            if (updatedSelectedContact != null && updatedCurrentUser != null) {
-                boolean currentUserHasContact = updatedCurrentUser.getContacts().contains(updatedSelectedContact);
-                boolean contactHasCurrentUser = updatedSelectedContact.getContacts().contains(updatedCurrentUser);
+        int visit = shown;
+        sendMessageButton.setDisable(true);
+        AsyncStore.supply(() -> checkContact(currentUser.getName(), selectedContact.getName())).whenCompleteAsync((check, error) -> {
+            sendMessageButton.setDisable(false);
+            if (visit != shown) {
+                return;
+            }
+            if (error != null) {
+                showAlert("No se pudieron comprobar los contactos: " + AsyncStore.unwrap(error).getMessage());
+                return;
+            }
+            if (check == null) {
+                return;
+            }
 
-                if (currentUserHasContact && contactHasCurrentUser) {
-                    SessionManager.getInstance().setSelectedUser(updatedSelectedContact);
-                    showAlert("Chat iniciado con " + updatedSelectedContact.getName());
-                    loadChatScreen();
-                } else {
-                    showAlert("No puedes iniciar un chat con " + updatedSelectedContact.getName() + " porque no es tu contacto.");
-                }
+            if (check.mutual) {
+                SessionManager.getInstance().setSelectedUser(check.contact);
+                showAlert("Chat iniciado con " + check.contact.getName());
+                loadChatScreen();
+                refreshContactSummaries();
+            } else {
+                showAlert("No puedes iniciar un chat con " + check.contact.getName() + " porque no es tu contacto.");
             }
-        } else {
-            showAlert("Por favor selecciona un contacto para chatear.");
+        }, AsyncStore.FX);
+    }
+
+    /**
+     * The outcome of checking whether a chat can be started with a contact.
+     */
+    private static final class ContactCheck {
+        final User contact;
+        final boolean mutual;
+
+        ContactCheck(User contact, boolean mutual) {
+            this.contact = contact;
+            this.mutual = mutual;
         }
     }
 
     /**
-     * Loads the current user's profile image if available.
+     * Checks whether a user and a contact have each other as contacts. Runs on the I/O executor.
+     * If they do, the conversation is marked as read, so the summaries read afterwards show no unread messages.
+     *
+     * @return the outcome, or null if either user no longer exists.
+     * @throws IOException if the contact graph cannot be read.
      */
-    private void loadCurrentUserImage() {
-        User currentUser = SessionManager.getInstance().getCurrentUser();
-        if (currentUser != null) {
-            List<User> users = XmlReader.getUsersFromXML(filePath);
-            for (User user : users) {
-                if (user.getName().equals(currentUser.getName())) {
-                    byte[] visualData = user.getProfileImage();
-                    if (visualData != null && visualData.length > 0) {
-                        ByteArrayInputStream bis = new ByteArrayInputStream(visualData);
-                        Image image = new Image(bis);
-                        userImage.setImage(image);
-                        applyCircularClip(userImage);
-                    }
-                    break;
-                }
+    private static ContactCheck checkContact(String userName, String contactName) throws IOException {
+        UserDirectory directory = UserDirectory.getInstance();
+        User contact = directory.find(contactName);
+        if (contact == null || directory.find(userName) == null) {
+            return null;
+        }
+        boolean mutual = directory.getContactGraph().areMutualContacts(userName, contactName);
+        if (mutual) {
+            try {
+                MessageLog.getInstance().markRead(userName, contactName);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Cannot mark the conversation as read", e);
             }
         }
+        return new ContactCheck(contact, mutual);
     }
 
     /**
-     * Applies a circular clip to an ImageView.
+     * Shows the profile image of the current user, decoding it in the background the first time.
      *
-     * @param imageView the ImageView to clip.
+     * @param user the current user as stored in the user directory.
      */
-    private void applyCircularClip(ImageView imageView) {
-        Circle clip = new Circle(50, 50, 50);
-        imageView.setClip(clip);
+    private void loadCurrentUserImage(User user) {
+        AvatarCache cache = AvatarCache.getInstance();
+        Image thumbnail = cache.getIfPresent(user, AVATAR_SIZE);
+        if (thumbnail != null) {
+            userImage.setImage(thumbnail);
+        } else {
+            userImage.setImage(cache.placeholder(AVATAR_SIZE));
+            cache.request(user, AVATAR_SIZE, userImage::setImage);
+        }
     }
 
     /**
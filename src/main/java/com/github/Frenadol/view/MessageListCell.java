@@ -1,41 +1,56 @@
 package com.github.Frenadol.view;
 
+import com.github.Frenadol.model.Message;
+import com.github.Frenadol.model.User;
 import javafx.geometry.Pos;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.Label;
 import javafx.scene.layout.HBox;
 
-public class MessageListCell extends ListCell<String> {
+import java.util.function.Predicate;
+
+public class MessageListCell extends ListCell<Message> {
     private HBox content;
     private Label messageLabel;
+    private User currentUser;
+    private Predicate<Message> isPending;
 
     /**
      * Constructs a MessageListCell, initializing the label for the message and the layout container.
+     *
+     * @param currentUser the logged in user, whose messages are aligned to the right.
+     * @param isPending tells whether a message has not been confirmed as written yet.
      */
-    public MessageListCell() {
+    public MessageListCell(User currentUser, Predicate<Message> isPending) {
         super();
+        this.currentUser = currentUser;
+        this.isPending = isPending;
         messageLabel = new Label();
         content = new HBox(messageLabel);
     }
 
     /**
      * Updates the display of the list cell based on the item's content and its empty state.
+     * The text is only formatted here, for the few cells that are visible.
+     * Messages still waiting for their write are shown faded.
      *
-     * @param item  the item to be displayed in the cell, represented as a String.
+     * @param item  the message to be displayed in the cell.
      * @param empty indicates whether the cell is empty or not.
      */
     @Override
-    protected void updateItem(String item, boolean empty) {
+    protected void updateItem(Message item, boolean empty) {
         super.updateItem(item, empty);
         if (item != null && !empty) {
-            if (item.startsWith("Para ")) {
+            if (item.getSender().equals(currentUser)) {
                 content.setAlignment(Pos.CENTER_RIGHT);
                 messageLabel.setStyle("-fx-background-color: lightblue; -fx-padding: 5px;");
-            } else if (item.startsWith("De ")) {
+                messageLabel.setText("Para " + item.getReceiver().getName() + ": " + item.getContent());
+            } else {
                 content.setAlignment(Pos.CENTER_LEFT);
                 messageLabel.setStyle("-fx-background-color: lightgreen; -fx-padding: 5px;");
+                messageLabel.setText("De " + item.getSender().getName() + ": " + item.getContent());
             }
-            messageLabel.setText(item);
+            messageLabel.setOpacity(isPending.test(item) ? 0.6 : 1.0);
             setGraphic(content);
         } else {
             setGraphic(null);
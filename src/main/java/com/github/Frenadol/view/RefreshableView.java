@@ -0,0 +1,14 @@
+package com.github.Frenadol.view;
+
+/**
+ * A controller whose view is kept by the {@link ViewRegistry} and shown more than once.
+ * {@code initialize} only wires up the controls, once; everything that depends on the session,
+ * such as the logged in user or the selected contact, is loaded again in {@link #onShow()}.
+ */
+public interface RefreshableView {
+
+    /**
+     * Brings the view up to date. Called on the FX thread every time the view is shown, the first time included.
+     */
+    void onShow();
+}
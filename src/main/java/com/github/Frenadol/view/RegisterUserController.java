@@ -1,8 +1,13 @@
 package com.github.Frenadol.view;
 
 import com.github.Frenadol.App;
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.AsyncStore;
+import com.github.Frenadol.utils.AvatarStore;
 import com.github.Frenadol.utils.Security;
+import com.github.Frenadol.utils.UserDirectory;
 import javafx.fxml.FXML;
+import javafx.scene.Cursor;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.PasswordField;
@@ -12,18 +17,11 @@ import javafx.scene.image.ImageView;
 import javafx.scene.shape.Circle;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import org.w3c.dom.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import java.io.*;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
 
-public class RegisterUserController {
+public class RegisterUserController implements RefreshableView {
     @FXML
     private TextField textUsername;
     @FXML
@@ -36,10 +34,21 @@ public class RegisterUserController {
     private ImageView imageView;
 
     private File imageFile;
-    private static final String USERS_FILE = "UsersData.xml";
 
     /**
-     * Registers a new user and saves the user data to an XML file.
+     * Clears the form and the chosen picture, so every registration starts empty.
+     */
+    @Override
+    public void onShow() {
+        textUsername.clear();
+        textPassword.clear();
+        imageFile = null;
+        imageView.setImage(null);
+    }
+
+    /**
+     * Registers a new user and saves the user data through the user directory.
+     * The checks that need the users file and the save itself run on the I/O executor.
      * It performs several checks, including whether all fields are filled,
      * if the password is secure, and if the username is already taken.
      */
@@ -63,32 +72,57 @@ public class RegisterUserController {
             return;
         }
 
-        try {
-            File xmlFile = new File(USERS_FILE);
+        File selectedImage = imageFile;
+        setInProgress(true);
+
+        AsyncStore.supply(() -> {
+            UserDirectory directory = UserDirectory.getInstance();
 
-            if (isUserExists(username, xmlFile)) {
-                showAlert("El nombre de usuario ya existe. Por favor elige otro.");
-                return;
+            if (directory.exists(username)) {
+                return "El nombre de usuario ya existe. Por favor elige otro.";
             }
 
             String hashedPassword;
             try {
                 hashedPassword = Security.hashPassword(pass);
             } catch (NoSuchAlgorithmException e) {
-                showAlert("Error al hashear la contraseña: " + e.getMessage() + ".");
-                return;
+                return "Error al hashear la contraseña: " + e.getMessage() + ".";
             }
 
-            byte[] imageData = new byte[(int) imageFile.length()];
-            try (FileInputStream fis = new FileInputStream(imageFile)) {
-                fis.read(imageData);
+            byte[] imageData = Files.readAllBytes(selectedImage.toPath());
+
+            User newUser = new User(username, hashedPassword, null, null);
+            newUser.setProfileImageHash(AvatarStore.getInstance().store(imageData));
+            if (!directory.addUser(newUser)) {
+                return "El nombre de usuario ya existe. Por favor elige otro.";
+            }
+            return null;
+        }).whenCompleteAsync((problem, error) -> {
+            setInProgress(false);
+            if (error != null) {
+                showAlert("Error al registrar el usuario: " + AsyncStore.unwrap(error).getMessage());
+            } else if (problem != null) {
+                showAlert(problem);
+            } else {
+                try {
+                    showAlert("Usuario registrado!");
+                    App.setRoot("Primary");
+                } catch (IOException e) {
+                    showAlert("Error al registrar el usuario: " + e.getMessage());
+                }
             }
+        }, AsyncStore.FX);
+    }
 
-            addUserToXML(username, hashedPassword, imageData, xmlFile);
-            showAlert("Usuario registrado!");
-            App.setRoot("primary");
-        } catch (Exception e) {
-            showAlert("Error al registrar el usuario: " + e.getMessage());
+    /**
+     * Shows whether a registration is being saved, so it cannot be submitted twice.
+     *
+     * @param inProgress true while the new user is being saved.
+     */
+    private void setInProgress(boolean inProgress) {
+        usersRegister.setDisable(inProgress);
+        if (usersRegister.getScene() != null) {
+            usersRegister.getScene().setCursor(inProgress ? Cursor.WAIT : Cursor.DEFAULT);
         }
     }
 
@@ -119,93 +153,6 @@ public class RegisterUserController {
         return hasUppercase && hasDigit;
     }
 
-    /**
-     * Checks if a user already exists in the XML file.
-     *
-     * @param username the username to check
-     * @param xmlFile  the XML file containing user data
-     * @return true if the user exists, false otherwise
-     * @throws Exception if an error occurs while reading the XML file
-     */
-    private boolean isUserExists(String username, File xmlFile) throws Exception {
-        if (!xmlFile.exists()) return false;
-
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-        Document doc = dBuilder.parse(xmlFile);
-        doc.getDocumentElement().normalize();
-
-        NodeList nodeList = doc.getElementsByTagName("user");
-
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element element = (Element) node;
-                String existingUsername = element.getElementsByTagName("username").item(0).getTextContent();
-
-                if (existingUsername.equals(username)) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * Adds a new user to the XML file.
-     * If the file does not exist, it creates a new one.
-     *
-     * @param username   the username of the new user
-     * @param password   the hashed password of the new user
-     * @param imageData  the profile image data in byte array format
-     * @param xmlFile    the XML file where user data is saved
-     * @throws ParserConfigurationException if there is an error in the XML parser configuration
-     * @throws TransformerException if there is an error transforming the XML data
-     * @throws IOException if there is an issue with file input/output
-     * @throws org.xml.sax.SAXException if there is an error parsing the XML
-     */
-    private void addUserToXML(String username, String password, byte[] imageData, File xmlFile)
-            throws ParserConfigurationException, TransformerException, IOException, org.xml.sax.SAXException {
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-        Document doc;
-
-        if (xmlFile.exists()) {
-            doc = docBuilder.parse(xmlFile);
-        } else {
-            doc = docBuilder.newDocument();
-            Element rootElement = doc.createElement("users");
-            doc.appendChild(rootElement);
-        }
-
-        Element rootElement = doc.getDocumentElement();
-
-        Element userElement = doc.createElement("user");
-        rootElement.appendChild(userElement);
-
-        Element usernameElement = doc.createElement("username");
-        usernameElement.appendChild(doc.createTextNode(username));
-        userElement.appendChild(usernameElement);
-
-        Element passwordElement = doc.createElement("password");
-        passwordElement.appendChild(doc.createTextNode(password));
-        userElement.appendChild(passwordElement);
-
-        Element imageElement = doc.createElement("image");
-        imageElement.appendChild(doc.createTextNode(Base64.getEncoder().encodeToString(imageData)));
-        userElement.appendChild(imageElement);
-
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        DOMSource source = new DOMSource(doc);
-        StreamResult result = new StreamResult(xmlFile);
-
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.transform(source, result);
-    }
-
     /**
      * Displays an alert dialog with a specified message.
      * The alert dialog is created and displayed to inform the user of various situations.
@@ -1,7 +1,7 @@
 package com.github.Frenadol.view;
 
 import com.github.Frenadol.App;
-import javafx.application.Platform;
+import com.github.Frenadol.utils.AsyncStore;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.layout.AnchorPane;
@@ -9,7 +9,6 @@ import javafx.scene.layout.AnchorPane;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ResourceBundle;
-import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,27 +18,21 @@ public class SplashController implements Initializable {
 
     /**
      * Initializes the SplashController. This method is called after the FXML
-     * file has been loaded. It runs an asynchronous task to simulate a splash
-     * screen duration before transitioning to the Primary view.
+     * file has been loaded. It starts the {@link StartupPipeline}, which loads the users,
+     * the message log, the views and the avatars in the background, and moves on to the
+     * Primary view as soon as it is done.
      *
      * @param url the location used to resolve relative paths for the root object, or null
      * @param rb  the resources used to localize the root object, or null
      */
     @Override
     public void initialize(URL url, ResourceBundle rb) {
-        CompletableFuture.runAsync(() -> {
+        StartupPipeline.run().whenCompleteAsync((ignored, error) -> {
             try {
-                Thread.sleep(600);
-                Platform.runLater(() -> {
-                    try {
-                        App.setRoot("Primary");
-                    } catch (IOException ex) {
-                        Logger.getLogger(SplashController.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                });
-            } catch (InterruptedException ex) {
+                App.setRoot("Primary");
+            } catch (IOException ex) {
                 Logger.getLogger(SplashController.class.getName()).log(Level.SEVERE, null, ex);
             }
-        });
+        }, AsyncStore.FX);
     }
 }
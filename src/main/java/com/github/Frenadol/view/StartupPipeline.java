@@ -0,0 +1,125 @@
+package com.github.Frenadol.view;
+
+import com.github.Frenadol.model.User;
+import com.github.Frenadol.utils.AsyncStore;
+import com.github.Frenadol.utils.MessageLog;
+import com.github.Frenadol.utils.Security;
+import com.github.Frenadol.utils.UserDirectory;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The work done while the splash screen is up, so that the first login and the first screens
+ * do not pay for cold files, class loading and image decoding.
+ * Independent stages run in parallel on a few startup threads and the FXML views are loaded into
+ * the {@link ViewRegistry} on the FX thread; every stage logs how long it took. A stage that fails
+ * is logged and skipped, since everything it warms up is loaded again on demand anyway.
+ */
+final class StartupPipeline {
+
+    private static final Logger logger = Logger.getLogger(StartupPipeline.class.getName());
+
+    private static final int MAX_PRELOADED_AVATARS = 200;
+    private static final String[] PRELOADED_VIEWS = {"Primary", "InicieSession", "RegisterUser", "MainMenu", "Chat"};
+
+    private StartupPipeline() {}
+
+    /**
+     * Starts every stage.
+     *
+     * @return a future completed once every stage has finished, successfully or not.
+     */
+    static CompletableFuture<Void> run() {
+        long start = System.nanoTime();
+        AtomicInteger threadCount = new AtomicInteger();
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "chattot-startup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        CompletableFuture<Void> users = stage("users", executor, StartupPipeline::loadUsers);
+        List<CompletableFuture<Void>> stages = new ArrayList<>();
+        stages.add(users);
+        stages.add(stage("messages", executor, MessageLog::getInstance));
+        stages.add(stage("classes", executor, StartupPipeline::warmClasses));
+        stages.add(users.thenCompose(ignored -> stage("avatars", executor, StartupPipeline::decodeAvatars)));
+        stages.add(users.thenCompose(ignored -> stage("views", AsyncStore.FX, StartupPipeline::loadViews)));
+
+        return CompletableFuture.allOf(stages.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            executor.shutdown();
+            logger.log(Level.INFO, "Startup finished in {0} ms", (System.nanoTime() - start) / 1_000_000);
+        });
+    }
+
+    /**
+     * A stage of the pipeline.
+     */
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private static CompletableFuture<Void> stage(String name, Executor executor, Stage stage) {
+        return CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                stage.run();
+                logger.log(Level.INFO, "Startup stage {0} took {1} ms", new Object[]{name, (System.nanoTime() - start) / 1_000_000});
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Startup stage " + name + " failed", e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Parses the users file into the user directory and loads the credential index and the contact graph.
+     */
+    private static void loadUsers() throws IOException {
+        UserDirectory directory = UserDirectory.getInstance();
+        directory.getUsers();
+        directory.getCredentials().getPasswordHash("");
+        directory.getContactGraph().hasContact("", "");
+    }
+
+    /**
+     * Loads the classes behind password hashing and XML writing, which are otherwise first used on login or registration.
+     */
+    private static void warmClasses() throws Exception {
+        Security.hashPassword("");
+        DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        TransformerFactory.newInstance().newTransformer();
+    }
+
+    /**
+     * Decodes the thumbnails shown in the main menu for the first users.
+     */
+    private static void decodeAvatars() {
+        AvatarCache cache = AvatarCache.getInstance();
+        List<User> users = UserDirectory.getInstance().getUsers();
+        for (int i = 0; i < users.size() && i < MAX_PRELOADED_AVATARS; i++) {
+            cache.load(users.get(i), MainMenuController.AVATAR_SIZE);
+        }
+    }
+
+    /**
+     * Loads the views into the {@link ViewRegistry}, so showing them later only runs their refresh hook.
+     */
+    private static void loadViews() throws IOException {
+        ViewRegistry registry = ViewRegistry.getInstance();
+        for (String view : PRELOADED_VIEWS) {
+            registry.preload(view);
+        }
+    }
+}
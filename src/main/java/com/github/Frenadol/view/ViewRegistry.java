@@ -0,0 +1,86 @@
+package com.github.Frenadol.view;
+
+import com.github.Frenadol.App;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the views of the application once their FXML has been loaded.
+ * Every FXML file is parsed and its controller created only the first time the view is needed;
+ * showing it again reuses the same scene graph and calls the {@link RefreshableView#onShow()} hook
+ * of its controller instead. Only used on the FX thread.
+ */
+public final class ViewRegistry {
+
+    private static ViewRegistry instance;
+
+    private final Map<String, View> views = new HashMap<>();
+
+    /**
+     * A loaded view.
+     */
+    private static final class View {
+        private final Parent root;
+        private final Object controller;
+
+        View(Parent root, Object controller) {
+            this.root = root;
+            this.controller = controller;
+        }
+    }
+
+    private ViewRegistry() {}
+
+    /**
+     * Returns the registry shared by every screen.
+     *
+     * @return the shared ViewRegistry instance.
+     */
+    public static synchronized ViewRegistry getInstance() {
+        if (instance == null) {
+            instance = new ViewRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Loads a view if it is not loaded yet, without showing it.
+     *
+     * @param name the name of the FXML file, without extension.
+     * @throws IOException if the FXML file cannot be loaded.
+     */
+    public void preload(String name) throws IOException {
+        get(name);
+    }
+
+    /**
+     * Returns the root of a view for it to be shown, loading it the first time and
+     * bringing it up to date through its controller's refresh hook every time.
+     *
+     * @param name the name of the FXML file, without extension.
+     * @return the root node of the view.
+     * @throws IOException if the FXML file cannot be loaded.
+     */
+    public Parent show(String name) throws IOException {
+        View view = get(name);
+        if (view.controller instanceof RefreshableView) {
+            ((RefreshableView) view.controller).onShow();
+        }
+        return view.root;
+    }
+
+    private View get(String name) throws IOException {
+        View view = views.get(name);
+        if (view == null) {
+            FXMLLoader loader = new FXMLLoader(App.class.getResource(name + ".fxml"));
+            Parent root = loader.load();
+            view = new View(root, loader.getController());
+            views.put(name, view);
+        }
+        return view;
+    }
+}
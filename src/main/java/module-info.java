@@ -4,6 +4,9 @@ module org.example {
     requires java.xml;
     requires java.desktop;
     requires java.logging;
+    requires jdk.jfr;
+    requires jdk.httpserver;
+    requires java.management;
     exports com.github.Frenadol.view;
     opens com.github.Frenadol to javafx.fxml;
     exports com.github.Frenadol;